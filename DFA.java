@@ -0,0 +1,541 @@
+package regex;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * Deterministic automaton built from an ε-NFA by lazy subset construction.
+ *
+ * Characters are first folded into alphabet equivalence classes (characters
+ * that every NFA state treats identically share a class), so each DFA state
+ * is a dense row of class-indexed transitions. Rows are only computed when
+ * matching first needs them; determinize() computes all of them up front.
+ *
+ * An optional cache budget bounds the estimated memory held by computed
+ * states; transitions that would need a state beyond it return OVER_BUDGET.
+ * Once every reachable transition is known the DFA drops the ε-NFA and its
+ * subset construction bookkeeping, keeping only its tables.
+ *
+ * Pattern flags are compiled into the tables, so they cost nothing per
+ * character: case-insensitive DFAs map both cases of a letter to one class,
+ * ^ is taken in the start state and, in MULTILINE mode, in the transition
+ * on '\n' (which also takes $ before the line break), and $ at the end of
+ * the input is folded into the accepting flags. A searching DFA restarts
+ * the pattern at every position and moves to an absorbing matched state as
+ * soon as any substring matches.
+ */
+public class DFA {
+    /** State 0 is the dead (rejecting, self-looping) state */
+    public static final int DEAD = 0;
+
+    /** Row entry for a transition that has not been computed yet */
+    static final int UNKNOWN = -1;
+
+    /** Transition result when a new state would exceed the cache budget */
+    static final int OVER_BUDGET = -2;
+
+    // Rough per-state footprint: the row array, the state's entries in the
+    // id map and set list, and one hash set node per ε-NFA state in it
+    private static final int STATE_OVERHEAD_BYTES = 96;
+    private static final int NFA_STATE_BYTES = 32;
+
+    // Rows and row entries are written with release stores and read with
+    // acquire loads, so a thread that reads a target state id also sees
+    // that state's row and flags, which were stored before it
+    private static final VarHandle ROW = MethodHandles.arrayElementVarHandle(int[][].class);
+    private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private EpsilonNFA nfa;
+    private final char[] classMap;
+    private final char[] representatives;
+    private final int classCount;
+    private final int startState;
+    private final long maxCacheBytes;
+    private final ResourceLimits limits;
+    private final boolean searching;
+    private final int matchedState;
+    private final Interner interner;
+    private final ToIntFunction<Set<State>> labeler;
+
+    // Subset construction bookkeeping, only touched while holding the lock;
+    // released (null) once no transition is UNKNOWN any more
+    private Map<Set<State>, Integer> stateIds = new HashMap<>();
+    private List<Set<State>> stateSets = new ArrayList<>();
+    private int unknownCount;
+    // UNKNOWN transitions per row; a row is interned when its count hits 0
+    private int[] rowUnknowns = new int[4];
+    private int stateCount;
+    private long cacheBytes;
+    private int[] labels;
+
+    // Replaced (never shrunk) when states are added; see ROW and ENTRY
+    private volatile int[][] rows;
+    private volatile boolean[] accepting;
+    private volatile int[] setSizes;
+
+    public DFA(EpsilonNFA nfa) {
+        this(nfa, ResourceLimits.UNLIMITED);
+    }
+
+    /**
+     * Creates a DFA whose computed states may hold at most about
+     * maxCacheBytes; the dead and start states are always kept
+     */
+    public DFA(EpsilonNFA nfa, long maxCacheBytes) {
+        this(nfa, maxCacheBytes, false);
+    }
+
+    /**
+     * Creates a DFA that accepts inputs matching the pattern as a whole or,
+     * if searching, inputs containing a match anywhere
+     */
+    public DFA(EpsilonNFA nfa, long maxCacheBytes, boolean searching) {
+        this(nfa, maxCacheBytes, searching, null);
+    }
+
+    /**
+     * Creates a DFA whose class map and completed transition rows are
+     * shared through interner with every other DFA using it
+     */
+    public DFA(EpsilonNFA nfa, long maxCacheBytes, boolean searching, Interner interner) {
+        this(nfa, new ResourceLimits().setMaxDFACacheBytes(maxCacheBytes), searching, interner);
+    }
+
+    /**
+     * Creates a DFA bounded by the cache limit of limits, which also counts
+     * the times determinizing or matching runs out of that budget
+     */
+    DFA(EpsilonNFA nfa, ResourceLimits limits, boolean searching, Interner interner) {
+        this(nfa, limits, searching, interner, null);
+    }
+
+    /**
+     * Creates a DFA that also labels each state with labeler applied to its
+     * ε-NFA states when the state is created (see getLabel)
+     */
+    DFA(EpsilonNFA nfa, ResourceLimits limits, boolean searching, Interner interner,
+        ToIntFunction<Set<State>> labeler) {
+        this.nfa = nfa;
+        this.maxCacheBytes = limits.getMaxDFACacheBytes();
+        this.limits = limits;
+        this.searching = searching;
+        this.interner = interner;
+        this.labeler = labeler;
+
+        // Group characters by how every NFA state treats them
+        List<State> states = nfa.getStates();
+        SortedMap<Character, List<Object>> signatures = new TreeMap<>();
+        for (State state : states) {
+            for (char symbol : state.getTransitionSymbols()) {
+                if (symbol == EpsilonNFA.LINE_START || symbol == EpsilonNFA.LINE_END) {
+                    continue;
+                }
+                List<Object> signature = signatures.computeIfAbsent(symbol, k -> new ArrayList<>());
+                signature.add(state);
+                signature.add(state.getTransitions(symbol));
+            }
+        }
+        if (nfa.isMultiline() && nfa.hasAnchors()) {
+            // Line breaks take anchors, so they need a class of their own
+            signatures.computeIfAbsent('\n', k -> new ArrayList<>()).add(EpsilonNFA.LINE_END);
+        }
+
+        int maxSymbol = signatures.isEmpty() ? -1 : signatures.lastKey();
+        char[] map = new char[maxSymbol + 1];
+
+        // Class 0 holds every character no state has a transition on, so its
+        // representative must be such a character
+        char unused = '\uFFFD';
+        while (signatures.containsKey(unused)) {
+            unused--;
+        }
+        Map<List<Object>, Integer> classIds = new HashMap<>();
+        List<Character> reps = new ArrayList<>();
+        reps.add(unused);
+        for (Map.Entry<Character, List<Object>> entry : signatures.entrySet()) {
+            Integer cls = classIds.get(entry.getValue());
+            if (cls == null) {
+                cls = reps.size();
+                classIds.put(entry.getValue(), cls);
+                reps.add(entry.getKey());
+            }
+            map[entry.getKey()] = (char) cls.intValue();
+        }
+
+        // Case-insensitive automata only have lower-case letter transitions
+        if (nfa.isCaseInsensitive()) {
+            for (char c = 'a'; c <= 'z' && c < map.length; c++) {
+                map[c - ('a' - 'A')] = map[c];
+            }
+        }
+        this.classMap = interner != null ? interner.intern(map) : map;
+
+        this.classCount = reps.size();
+        this.representatives = new char[classCount];
+        for (int i = 0; i < classCount; i++) {
+            representatives[i] = reps.get(i);
+        }
+
+        this.rows = new int[4][];
+        this.accepting = new boolean[4];
+        this.setSizes = new int[4];
+        this.labels = labeler != null ? new int[4] : null;
+        synchronized (this) {
+            addState(Collections.emptySet());
+            this.matchedState = searching ? addState(Set.of(new State(true))) : UNKNOWN;
+
+            Set<State> start = nfa.startStates();
+            boolean matchedEmpty = searching && EpsilonNFA.containsAccepting(start);
+            this.startState = matchedEmpty ? matchedState : addState(start);
+            releaseIfComplete();
+        }
+    }
+
+    /**
+     * Creates a fully materialised DFA from its tables (used when loading
+     * serialized patterns). The tables are not copied.
+     */
+    DFA(char[] classMap, int classCount, int startState, boolean[] accepting, int[][] rows) {
+        this.nfa = null;
+        this.classMap = classMap;
+        this.representatives = null;
+        this.classCount = classCount;
+        this.startState = startState;
+        this.maxCacheBytes = ResourceLimits.UNLIMITED;
+        this.limits = null;
+        this.searching = false;
+        this.matchedState = UNKNOWN;
+        this.interner = null;
+        this.labeler = null;
+        this.stateIds = null;
+        this.stateSets = null;
+        this.rowUnknowns = null;
+        this.stateCount = rows.length;
+        this.rows = rows;
+        this.accepting = accepting;
+        this.setSizes = new int[rows.length];
+    }
+
+    /**
+     * Maps a character to its alphabet class
+     */
+    public int classOf(char c) {
+        return c < classMap.length ? classMap[c] : 0;
+    }
+
+    /**
+     * Returns the state reached from state on character c
+     */
+    public int step(int state, char c) {
+        return transition(state, classOf(c));
+    }
+
+    /**
+     * Returns the state reached from state on alphabet class cls,
+     * computing the transition if it has not been seen before, or
+     * OVER_BUDGET if that would exceed the cache budget
+     */
+    public int transition(int state, int cls) {
+        int next = cachedTransition(state, cls);
+        return next != UNKNOWN ? next : computeTransition(state, cls);
+    }
+
+    /**
+     * Returns the transition if it has already been computed, else UNKNOWN
+     */
+    int cachedTransition(int state, int cls) {
+        int[][] current = rows;
+        if (state < current.length) {
+            int[] row = (int[]) ROW.getAcquire(current, state);
+            if (row != null) {
+                return (int) ENTRY.getAcquire(row, cls);
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public boolean isAccepting(int state) {
+        boolean[] current = accepting;
+        if (state < current.length) {
+            return current[state];
+        }
+        synchronized (this) {
+            return accepting[state];
+        }
+    }
+
+    /**
+     * Returns how many ε-NFA states the DFA state stands for (the size of
+     * the active state set), or 0 for DFAs loaded without their ε-NFA
+     */
+    public int getNFAStateCount(int state) {
+        int[] current = setSizes;
+        if (state < current.length) {
+            return current[state];
+        }
+        synchronized (this) {
+            return setSizes[state];
+        }
+    }
+
+    /**
+     * Simulates the DFA on input
+     */
+    public boolean matches(CharSequence input) {
+        if (searching) {
+            return search(input);
+        }
+        int state = startState;
+
+        for (int i = 0; i < input.length(); i++) {
+            state = step(state, input.charAt(i));
+            if (state <= DEAD) {
+                if (state == OVER_BUDGET) {
+                    throw cacheLimitExceeded();
+                }
+                return false;
+            }
+        }
+
+        return isAccepting(state);
+    }
+
+    private boolean search(CharSequence input) {
+        int state = startState;
+
+        for (int i = 0; i < input.length() && state != matchedState; i++) {
+            state = step(state, input.charAt(i));
+            if (state == OVER_BUDGET) {
+                throw cacheLimitExceeded();
+            }
+        }
+
+        return isAccepting(state);
+    }
+
+    /**
+     * Computes every reachable state and transition, so later matching
+     * never falls back to subset construction
+     *
+     * @throws ResourceLimitException if the DFA does not fit its cache budget
+     */
+    public DFA determinize() {
+        if (isComplete()) {
+            return this;
+        }
+
+        // State ids are assigned in discovery order, so a single pass suffices
+        for (int state = 0; state < getStateCount(); state++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                if (transition(state, cls) == OVER_BUDGET) {
+                    throw cacheLimitExceeded();
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns true once every reachable transition has been computed
+     */
+    public synchronized boolean isComplete() {
+        if (stateSets == null) {
+            return true;
+        }
+        for (int state = 0; state < stateCount; state++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                if (rows[state][cls] == UNKNOWN) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getStartState() {
+        return startState;
+    }
+
+    public boolean isSearching() {
+        return searching;
+    }
+
+    /**
+     * Returns the absorbing state a searching DFA enters once it has seen
+     * a match, or UNKNOWN (no state) for a DFA that is not searching
+     */
+    public int getMatchedState() {
+        return matchedState;
+    }
+
+    public synchronized int getStateCount() {
+        return stateCount;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Returns the estimated memory held by computed states
+     */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Returns the ε-NFA states a DFA state stands for (empty for DFAs
+     * loaded without their ε-NFA, or complete ones)
+     */
+    synchronized Set<State> getNFAStates(int state) {
+        return stateSets != null ? Collections.unmodifiableSet(stateSets.get(state)) : Collections.emptySet();
+    }
+
+    /**
+     * Returns the ε-NFA this DFA determinizes, or null once it is complete
+     * or for DFAs loaded without one
+     */
+    synchronized EpsilonNFA getNFA() {
+        return nfa;
+    }
+
+    /**
+     * Returns the label the labeler gave a state when it was created
+     */
+    synchronized int getLabel(int state) {
+        return labels[state];
+    }
+
+    /**
+     * Returns a copy of the character-to-class map. Characters at or beyond
+     * its length belong to class 0.
+     */
+    public char[] getClassMap() {
+        return classMap.clone();
+    }
+
+    private synchronized int computeTransition(int state, int cls) {
+        if (state < 0 || state >= stateCount) {
+            throw new IllegalArgumentException("Unknown DFA state: " + state);
+        }
+
+        int next = rows[state][cls];
+        if (next != UNKNOWN) {
+            return next;
+        }
+
+        Set<State> targets = nfa.step(stateSets.get(state), representatives[cls], searching);
+        if (targets == null) {
+            next = matchedState;
+        } else {
+            next = targets.isEmpty() ? DEAD : stateFor(targets);
+        }
+        if (next == OVER_BUDGET) {
+            return next;
+        }
+        ENTRY.setRelease(rows[state], cls, next);
+        unknownCount--;
+        if (--rowUnknowns[state] == 0) {
+            share(state);
+        }
+        releaseIfComplete();
+        return next;
+    }
+
+    /**
+     * Drops the ε-NFA and subset construction bookkeeping once every
+     * transition is known; matching only needs the tables from then on
+     */
+    private void releaseIfComplete() {
+        if (unknownCount == 0) {
+            nfa = null;
+            stateIds = null;
+            stateSets = null;
+            rowUnknowns = null;
+        }
+    }
+
+    /**
+     * Replaces a state's row by its canonical copy once it is complete;
+     * complete rows are never written again, so they can be shared
+     */
+    private void share(int state) {
+        if (interner != null) {
+            ROW.setRelease(rows, state, interner.intern(rows[state]));
+        }
+    }
+
+    private int stateFor(Set<State> nfaStates) {
+        Integer id = stateIds.get(nfaStates);
+        if (id != null) {
+            return id;
+        }
+        if (cacheBytes + stateBytes(nfaStates) > maxCacheBytes) {
+            return OVER_BUDGET;
+        }
+        return addState(nfaStates);
+    }
+
+    private long stateBytes(Set<State> nfaStates) {
+        return STATE_OVERHEAD_BYTES + 4L * classCount + (long) NFA_STATE_BYTES * nfaStates.size();
+    }
+
+    private ResourceLimitException cacheLimitExceeded() {
+        limits.recordHit(ResourceLimits.Limit.DFA_CACHE_BYTES);
+        return new ResourceLimitException(ResourceLimits.Limit.DFA_CACHE_BYTES,
+            "DFA cache exceeds " + maxCacheBytes + " bytes");
+    }
+
+    private int addState(Set<State> nfaStates) {
+        int id = stateCount++;
+        cacheBytes += stateBytes(nfaStates);
+        stateIds.put(nfaStates, id);
+        stateSets.add(nfaStates);
+
+        int[][] currentRows = rows;
+        boolean[] currentAccepting = accepting;
+        int[] currentSetSizes = setSizes;
+        if (id >= currentRows.length) {
+            currentRows = Arrays.copyOf(currentRows, currentRows.length * 2);
+            currentAccepting = Arrays.copyOf(currentAccepting, currentAccepting.length * 2);
+            currentSetSizes = Arrays.copyOf(currentSetSizes, currentSetSizes.length * 2);
+            rowUnknowns = Arrays.copyOf(rowUnknowns, rowUnknowns.length * 2);
+            if (labels != null) {
+                labels = Arrays.copyOf(labels, labels.length * 2);
+            }
+        }
+        if (labels != null) {
+            labels[id] = labeler.applyAsInt(nfaStates);
+        }
+
+        // The dead and matched states only lead to themselves; outside search
+        // mode, characters no NFA state has transitions on lead to the dead state
+        boolean absorbing = id == DEAD || (searching && id == 1);
+        int[] row = new int[classCount];
+        Arrays.fill(row, absorbing ? id : UNKNOWN);
+        if (!searching) {
+            row[0] = DEAD;
+        }
+        for (int target : row) {
+            if (target == UNKNOWN) {
+                rowUnknowns[id]++;
+            }
+        }
+        unknownCount += rowUnknowns[id];
+
+        boolean lineStart = nfaStates.contains(EpsilonNFA.AT_LINE_START);
+        currentSetSizes[id] = nfaStates.size() - (lineStart ? 1 : 0);
+        currentAccepting[id] = absorbing ? id != DEAD : nfa.acceptsAtEnd(nfaStates);
+        ROW.setRelease(currentRows, id, row);
+
+        accepting = currentAccepting;
+        setSizes = currentSetSizes;
+        rows = currentRows;
+        if (rowUnknowns[id] == 0) {
+            share(id);
+        }
+        return id;
+    }
+}
@@ -4,14 +4,39 @@ import java.util.*;
 
 /**
  * Represents an ε-NFA (epsilon-Non-deterministic Finite Automaton)
+ *
+ * Anchors are transitions on two reserved symbols (the Unicode noncharacters
+ * U+FFFE and U+FFFF) that are never consumed from input; instead they are
+ * taken at the positions where ^ or $ holds. Case-insensitive automata only
+ * have transitions on lower-case ASCII letters, and input is folded to match.
  */
 public class EpsilonNFA {
+    /** Symbol of the ^ anchor */
+    public static final char LINE_START = '\uFFFE';
+    
+    /** Symbol of the $ anchor */
+    public static final char LINE_END = '\uFFFF';
+    
+    // Added to active state sets at line starts, so a later $ at the same
+    // position (an empty line) can still take ^ transitions
+    static final State AT_LINE_START = new State();
+    
     private State startState;
     private State endState;
+    private final int flags;
+    private volatile int anchors = -1;
     
     public EpsilonNFA(State startState, State endState) {
+        this(startState, endState, 0);
+    }
+    
+    /**
+     * Creates an ε-NFA with RegexEngine compile flags
+     */
+    public EpsilonNFA(State startState, State endState, int flags) {
         this.startState = startState;
         this.endState = endState;
+        this.flags = flags;
     }
     
     public State getStartState() {
@@ -22,6 +47,62 @@ public class EpsilonNFA {
         return endState;
     }
     
+    public int getFlags() {
+        return flags;
+    }
+    
+    public boolean isCaseInsensitive() {
+        return (flags & RegexEngine.CASE_INSENSITIVE) != 0;
+    }
+    
+    public boolean isMultiline() {
+        return (flags & RegexEngine.MULTILINE) != 0;
+    }
+    
+    /**
+     * Returns true if any state has a ^ or $ transition
+     */
+    public boolean hasAnchors() {
+        if (anchors < 0) {
+            boolean found = false;
+            for (State state : getStates()) {
+                Set<Character> symbols = state.getTransitionSymbols();
+                if (symbols.contains(LINE_START) || symbols.contains(LINE_END)) {
+                    found = true;
+                    break;
+                }
+            }
+            anchors = found ? 1 : 0;
+        }
+        return anchors == 1;
+    }
+    
+    /**
+     * Returns every state reachable from the start state, in breadth-first order
+     */
+    public List<State> getStates() {
+        List<State> states = new ArrayList<>();
+        Set<State> visited = new HashSet<>();
+        Queue<State> queue = new LinkedList<>();
+        queue.add(startState);
+        visited.add(startState);
+        
+        while (!queue.isEmpty()) {
+            State current = queue.poll();
+            states.add(current);
+            for (State target : current.getEpsilonTransitions()) {
+                if (visited.add(target)) queue.add(target);
+            }
+            for (char symbol : current.getTransitionSymbols()) {
+                for (State target : current.getTransitions(symbol)) {
+                    if (visited.add(target)) queue.add(target);
+                }
+            }
+        }
+        
+        return states;
+    }
+    
     /**
      * Computes epsilon closure for a set of states
      */
@@ -43,33 +124,135 @@ public class EpsilonNFA {
         return closure;
     }
     
+    /**
+     * Maps an input character to the symbol the automaton has transitions on
+     */
+    char fold(char c) {
+        if (isCaseInsensitive() && c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        }
+        return c;
+    }
+    
+    /**
+     * Returns the active states before any input is read
+     */
+    Set<State> startStates() {
+        Set<State> states = epsilonClosure(Set.of(startState));
+        return hasAnchors() ? atBoundary(states, true, false) : states;
+    }
+    
+    /**
+     * Takes the anchor transitions that hold at a position, until no more
+     * states are added
+     */
+    private Set<State> atBoundary(Set<State> states, boolean lineStart, boolean lineEnd) {
+        Set<State> result = new HashSet<>(states);
+        boolean changed = true;
+        
+        while (changed) {
+            Set<State> targets = new HashSet<>();
+            for (State state : result) {
+                if (lineStart) targets.addAll(state.getTransitions(LINE_START));
+                if (lineEnd) targets.addAll(state.getTransitions(LINE_END));
+            }
+            changed = result.addAll(epsilonClosure(targets));
+        }
+        
+        if (lineStart && !result.isEmpty()) {
+            result.add(AT_LINE_START);
+        }
+        return result;
+    }
+    
+    /**
+     * Advances active states over one input character. In search mode the
+     * pattern is restarted at every position, and null is returned as soon
+     * as a match has been seen.
+     */
+    Set<State> step(Set<State> states, char c, boolean search) {
+        boolean newline = c == '\n' && isMultiline() && hasAnchors();
+        if (newline) {
+            states = atBoundary(states, states.contains(AT_LINE_START), true);
+            if (search && containsAccepting(states)) {
+                return null;
+            }
+        }
+        
+        Set<State> moved = new HashSet<>();
+        if (c != LINE_START && c != LINE_END) {
+            char symbol = fold(c);
+            for (State state : states) {
+                moved.addAll(state.getTransitions(symbol));
+            }
+        }
+        if (search) {
+            moved.add(startState);
+        }
+        
+        Set<State> next = epsilonClosure(moved);
+        if (newline) {
+            next = atBoundary(next, true, false);
+        }
+        if (search && containsAccepting(next)) {
+            return null;
+        }
+        return next;
+    }
+    
+    /**
+     * Returns true if the active states accept at the end of the input
+     */
+    boolean acceptsAtEnd(Set<State> states) {
+        if (hasAnchors()) {
+            states = atBoundary(states, states.contains(AT_LINE_START), true);
+        }
+        return containsAccepting(states);
+    }
+    
+    static boolean containsAccepting(Set<State> states) {
+        for (State state : states) {
+            if (state.isAccepting()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     /**
      * Simulates the ε-NFA on input string
      */
     public boolean matches(String input) {
-        Set<State> currentStates = epsilonClosure(Set.of(startState));
+        Set<State> currentStates = startStates();
         
         for (char c : input.toCharArray()) {
-            Set<State> nextStates = new HashSet<>();
-            
-            for (State state : currentStates) {
-                nextStates.addAll(state.getTransitions(c));
-            }
-            
-            currentStates = epsilonClosure(nextStates);
+            currentStates = step(currentStates, c, false);
             
             if (currentStates.isEmpty()) {
                 return false;
             }
         }
         
-        // Check if any current state is accepting
-        for (State state : currentStates) {
-            if (state.isAccepting()) {
+        return acceptsAtEnd(currentStates);
+    }
+    
+    /**
+     * Tests if some substring of input matches, with ^ and $ holding only
+     * at the input (or, in MULTILINE mode, line) boundaries
+     */
+    public boolean find(String input) {
+        Set<State> currentStates = startStates();
+        if (containsAccepting(currentStates)) {
+            return true;
+        }
+        
+        for (char c : input.toCharArray()) {
+            currentStates = step(currentStates, c, true);
+            if (currentStates == null) {
                 return true;
             }
         }
         
-        return false;
+        return acceptsAtEnd(currentStates);
     }
 }
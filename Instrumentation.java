@@ -0,0 +1,170 @@
+package regex;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import jdk.jfr.*;
+
+/**
+ * Opt-in instrumentation of pattern compilation and matching.
+ *
+ * Enabled by starting the JVM with -Dregex.instrumentation=true. The flag is
+ * a static final, so when it is off the instrumented branches in RegexEngine
+ * are removed by the JIT and cost nothing. When it is on, measurements go to
+ * the registered RegexMetricsListeners and are emitted as the JDK Flight
+ * Recorder events regex.Compile, regex.Match and regex.LimitExceeded.
+ */
+public final class Instrumentation {
+    public static final boolean ENABLED = Boolean.getBoolean("regex.instrumentation");
+    
+    private static final List<RegexMetricsListener> listeners = new CopyOnWriteArrayList<>();
+    
+    private Instrumentation() {
+    }
+    
+    public static void addListener(RegexMetricsListener listener) {
+        listeners.add(listener);
+    }
+    
+    public static void removeListener(RegexMetricsListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Parses a pattern, recording compile time and automaton size
+     */
+    static EpsilonNFA compile(RegexParser parser, String pattern, int flags) {
+        CompileEvent event = new CompileEvent();
+        event.begin();
+        long start = System.nanoTime();
+        
+        EpsilonNFA nfa = parser.parse(pattern, flags);
+        
+        long nanos = System.nanoTime() - start;
+        event.end();
+        
+        int states = 0;
+        int transitions = 0;
+        int epsilonTransitions = 0;
+        for (State state : nfa.getStates()) {
+            states++;
+            epsilonTransitions += state.getEpsilonTransitions().size();
+            for (char symbol : state.getTransitionSymbols()) {
+                transitions += state.getTransitions(symbol).size();
+            }
+        }
+        
+        if (event.shouldCommit()) {
+            event.pattern = pattern;
+            event.states = states;
+            event.transitions = transitions;
+            event.epsilonTransitions = epsilonTransitions;
+            event.commit();
+        }
+        for (RegexMetricsListener listener : listeners) {
+            listener.patternCompiled(pattern, nanos, states, transitions, epsilonTransitions);
+        }
+        
+        return nfa;
+    }
+    
+    /**
+     * Matches a compiled pattern, recording per-match work and DFA cache use
+     */
+    static MatchResult match(RegexEngine.CompiledPattern pattern, DFA dfa, String input) {
+        MatchEvent event = new MatchEvent();
+        event.begin();
+        long start = System.nanoTime();
+        
+        MatchRun run = new MatchRun(pattern, dfa);
+        MatchResult result = run.run(input);
+        
+        long nanos = System.nanoTime() - start;
+        event.end();
+        
+        boolean matched = result == MatchResult.MATCH;
+        if (event.shouldCommit()) {
+            event.pattern = pattern.getPattern();
+            event.chars = run.chars;
+            event.maxActiveStates = run.maxActiveStates;
+            event.cacheHits = run.cacheHits;
+            event.cacheMisses = run.cacheMisses;
+            event.matched = matched;
+            event.commit();
+        }
+        for (RegexMetricsListener listener : listeners) {
+            listener.patternMatched(pattern.getPattern(), nanos, run.chars, run.maxActiveStates,
+                run.cacheHits, run.cacheMisses, matched);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Records that compiling or matching a pattern hit a resource limit
+     */
+    static void limitExceeded(String pattern, ResourceLimits.Limit limit) {
+        LimitEvent event = new LimitEvent();
+        if (event.shouldCommit()) {
+            event.pattern = pattern;
+            event.limit = limit.name();
+            event.commit();
+        }
+        for (RegexMetricsListener listener : listeners) {
+            listener.limitExceeded(pattern, limit);
+        }
+    }
+    
+    @Name("regex.Compile")
+    @Label("Regex Compile")
+    @Category("Regex")
+    @Description("Parsing of a pattern into an ε-NFA")
+    static class CompileEvent extends Event {
+        @Label("Pattern")
+        String pattern;
+        
+        @Label("States")
+        int states;
+        
+        @Label("Transitions")
+        int transitions;
+        
+        @Label("Epsilon Transitions")
+        int epsilonTransitions;
+    }
+    
+    @Name("regex.Match")
+    @Label("Regex Match")
+    @Category("Regex")
+    @Description("Matching of an input against a compiled pattern")
+    static class MatchEvent extends Event {
+        @Label("Pattern")
+        String pattern;
+        
+        @Label("Characters")
+        int chars;
+        
+        @Label("Max Active States")
+        int maxActiveStates;
+        
+        @Label("DFA Cache Hits")
+        int cacheHits;
+        
+        @Label("DFA Cache Misses")
+        int cacheMisses;
+        
+        @Label("Matched")
+        boolean matched;
+    }
+    
+    @Name("regex.LimitExceeded")
+    @Label("Regex Limit Exceeded")
+    @Category("Regex")
+    @Description("A pattern compile or match ran out of a resource budget")
+    static class LimitEvent extends Event {
+        @Label("Pattern")
+        String pattern;
+        
+        @Label("Limit")
+        String limit;
+    }
+}
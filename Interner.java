@@ -0,0 +1,102 @@
+package regex;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Weak canonicalizing set of immutable DFA tables (transition rows and class
+ * maps). Interning a table returns an existing equal table if there is one,
+ * so equal tables across all patterns of an engine are stored once. Tables
+ * are only weakly held: once no DFA uses a table it is dropped from the set.
+ *
+ * Interned tables are shared and must never be modified. Thread-safe.
+ */
+public final class Interner {
+    private final Map<Integer, List<Entry>> buckets = new HashMap<>();
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private int size;
+    private long hits;
+    
+    /**
+     * Returns the canonical table equal to row, which becomes the canonical
+     * one if there is none yet
+     */
+    public int[] intern(int[] row) {
+        return (int[]) intern(row, Arrays.hashCode(row));
+    }
+    
+    /**
+     * Returns the canonical table equal to map, which becomes the canonical
+     * one if there is none yet
+     */
+    public char[] intern(char[] map) {
+        return (char[]) intern(map, Arrays.hashCode(map) * 31 + 1);
+    }
+    
+    private synchronized Object intern(Object table, int hash) {
+        expunge();
+        List<Entry> bucket = buckets.computeIfAbsent(hash, k -> new ArrayList<>(1));
+        for (Entry entry : bucket) {
+            Object existing = entry.get();
+            if (existing != null && sameTable(existing, table)) {
+                hits++;
+                return existing;
+            }
+        }
+        bucket.add(new Entry(table, hash, collected));
+        size++;
+        return table;
+    }
+    
+    private static boolean sameTable(Object a, Object b) {
+        if (a instanceof int[] && b instanceof int[]) {
+            return Arrays.equals((int[]) a, (int[]) b);
+        }
+        if (a instanceof char[] && b instanceof char[]) {
+            return Arrays.equals((char[]) a, (char[]) b);
+        }
+        return false;
+    }
+    
+    /**
+     * Drops the entries of tables that have been garbage collected
+     */
+    private void expunge() {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null) {
+            List<Entry> bucket = buckets.get(entry.hash);
+            if (bucket != null && bucket.remove(entry)) {
+                size--;
+                if (bucket.isEmpty()) {
+                    buckets.remove(entry.hash);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns how many distinct tables are currently interned
+     */
+    public synchronized int size() {
+        expunge();
+        return size;
+    }
+    
+    /**
+     * Returns how many times an equal table was already interned, i.e. how
+     * many table copies sharing has avoided
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    private static final class Entry extends WeakReference<Object> {
+        final int hash;
+        
+        Entry(Object table, int hash, ReferenceQueue<Object> queue) {
+            super(table, queue);
+            this.hash = hash;
+        }
+    }
+}
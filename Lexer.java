@@ -0,0 +1,367 @@
+package regex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Tokenizer generated from an ordered list of token rules.
+ *
+ * All rules are compiled into one combined DFA and input is tokenized with
+ * maximal munch: at each position the longest match wins, and among rules
+ * matching the same length the one listed first wins. Characters no rule
+ * matches become one-character ERROR tokens. Tokens are written to a
+ * reusable Tokens buffer of primitive arrays, so tokenizing allocates
+ * nothing per token.
+ *
+ * Finding the longest match can scan past the token's end, and plain
+ * maximal munch rescans that input for the next token, which is quadratic
+ * in the worst case (rules "a" and "a*b" on a long run of a's). Like Reps'
+ * linear-time maximal munch, tokenize() remembers every (DFA state, input
+ * position) pair from which no accepting state was reached, and stops a
+ * scan as soon as it meets one, so each pair is scanned past at most once
+ * and tokenizing takes time linear in the input. Only pairs scanned past a
+ * token's end are remembered, in a hash set created on the first such
+ * overshoot and kept in the Tokens buffer for reuse, so the memo grows with
+ * the overshoot rather than with stateCount × length.
+ */
+public final class Lexer {
+    /** Kind of a character that no rule matches */
+    public static final int ERROR = -1;
+
+    private final String[] names;
+    private final char[] classMap;
+    private final int classCount;
+    private final int startState;
+    private final int[] table;
+    private final int[] acceptRule;
+
+    public Lexer(List<Rule> rules) {
+        this(rules, new ResourceLimits());
+    }
+
+    /**
+     * Creates a lexer whose rules and combined DFA are bounded by the
+     * NFA state and DFA cache limits
+     *
+     * @throws ResourceLimitException if the rules exceed the limits
+     */
+    public Lexer(List<Rule> rules, ResourceLimits limits) {
+        if (rules.isEmpty()) {
+            throw new IllegalArgumentException("Lexer needs at least one rule");
+        }
+
+        // Thompson-style union of every rule under one start state
+        State start = new State();
+        Map<State, Integer> ruleEnds = new HashMap<>();
+        names = new String[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            EpsilonNFA nfa = parseRule(rule, limits);
+            if (nfa.epsilonClosure(Set.of(nfa.getStartState())).contains(nfa.getEndState())) {
+                throw new IllegalArgumentException("Rule matches the empty string: " + rule.getName());
+            }
+            if (nfa.hasAnchors()) {
+                throw new IllegalArgumentException("Rule uses anchors: " + rule.getName());
+            }
+            start.addEpsilonTransition(nfa.getStartState());
+            ruleEnds.put(nfa.getEndState(), i);
+            names[i] = rule.getName();
+        }
+
+        // Each DFA state is labeled with the earliest rule accepting in it,
+        // which has priority
+        DFA dfa = new DFA(new EpsilonNFA(start, new State()), limits, false, null, nfaStates -> {
+            int rule = ERROR;
+            for (State nfaState : nfaStates) {
+                Integer index = ruleEnds.get(nfaState);
+                if (index != null && (rule == ERROR || index < rule)) {
+                    rule = index;
+                }
+            }
+            return rule;
+        }).determinize();
+
+        classMap = dfa.getClassMap();
+        classCount = dfa.getClassCount();
+        startState = dfa.getStartState();
+
+        int stateCount = dfa.getStateCount();
+        table = new int[stateCount * classCount];
+        acceptRule = new int[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                table[state * classCount + cls] = dfa.transition(state, cls);
+            }
+            acceptRule[state] = dfa.getLabel(state);
+        }
+    }
+
+    private static EpsilonNFA parseRule(Rule rule, ResourceLimits limits) {
+        try {
+            return new RegexParser(limits.getMaxNFAStates()).parse(rule.getPattern());
+        } catch (ResourceLimitException e) {
+            limits.recordHit(e.getLimit());
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid pattern for rule " + rule.getName()
+                + ": " + rule.getPattern(), e);
+        }
+    }
+
+    /**
+     * Tokenizes input into out, replacing its previous contents
+     *
+     * @return the number of tokens
+     */
+    public int tokenize(CharSequence input, Tokens out) {
+        out.clear();
+        int length = input.length();
+        int position = 0;
+
+        // Holds (state * (length + 1) + i) once reading on from state after
+        // i characters is known to reach no accepting state
+        FailedPairs failed = out.failed;
+        if (failed != null) {
+            failed.clear();
+        }
+        // The states the current scan went through since it last accepted
+        int[] pending = out.pending;
+
+        while (position < length) {
+            int state = startState;
+            int rule = ERROR;
+            int end = position + 1;
+            int pendingCount = 0;
+
+            for (int i = position; i < length; i++) {
+                char c = input.charAt(i);
+                int cls = c < classMap.length ? classMap[c] : 0;
+                state = table[state * classCount + cls];
+                if (state == DFA.DEAD) {
+                    break;
+                }
+                if (failed != null && failed.contains((long) state * (length + 1) + i + 1)) {
+                    break;
+                }
+                if (acceptRule[state] != ERROR) {
+                    rule = acceptRule[state];
+                    end = i + 1;
+                    pendingCount = 0;
+                } else {
+                    if (pendingCount == pending.length) {
+                        pending = out.pending = Arrays.copyOf(pending, pendingCount * 2);
+                    }
+                    pending[pendingCount++] = state;
+                }
+            }
+
+            // Nothing accepted after the token's end (or at all, for an
+            // error token), so the pairs scanned there have failed
+            if (pendingCount > 0) {
+                if (failed == null) {
+                    failed = out.failed = new FailedPairs();
+                }
+                int first = (rule == ERROR ? position : end) + 1;
+                for (int k = 0; k < pendingCount; k++) {
+                    failed.add((long) pending[k] * (length + 1) + first + k);
+                }
+            }
+
+            out.add(rule, position, end);
+            position = end;
+        }
+
+        return out.count();
+    }
+
+    /**
+     * Reads in to the end and tokenizes it into out. Offsets are character
+     * offsets from the start of the stream. The whole stream is buffered in
+     * memory first, since a token may extend to its very end.
+     */
+    public int tokenize(Reader in, Tokens out) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            text.append(buffer, 0, read);
+        }
+        return tokenize(text, out);
+    }
+
+    /**
+     * Returns the rule name for a token kind
+     */
+    public String getName(int kind) {
+        return kind == ERROR ? "ERROR" : names[kind];
+    }
+
+    public int getRuleCount() {
+        return names.length;
+    }
+
+    /**
+     * Open-addressing hash set of failed (state, position) keys, which are
+     * never 0 since positions past a token's start are at least 1
+     */
+    private static final class FailedPairs {
+        private long[] keys = new long[64];
+        private int size;
+
+        boolean contains(long key) {
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long key) {
+            if (2 * (size + 1) > keys.length) {
+                long[] old = keys;
+                keys = new long[old.length * 2];
+                for (long existing : old) {
+                    if (existing != 0) {
+                        insert(existing);
+                    }
+                }
+            }
+            if (insert(key)) {
+                size++;
+            }
+        }
+
+        private boolean insert(long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            return true;
+        }
+
+        private static int slot(long key, int mask) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(keys, 0);
+                size = 0;
+            }
+        }
+    }
+
+    /**
+     * A named token pattern
+     */
+    public static class Rule {
+        private final String name;
+        private final String pattern;
+
+        public Rule(String name, String pattern) {
+            if (name == null || pattern == null || pattern.isEmpty()) {
+                throw new IllegalArgumentException("Rule needs a name and a non-empty pattern");
+            }
+            this.name = name;
+            this.pattern = pattern;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+    }
+
+    /**
+     * Reusable token buffer: token i has kind kinds()[i] (a rule index or
+     * ERROR) and covers input characters [starts()[i], ends()[i])
+     */
+    public static class Tokens {
+        private int[] kinds;
+        private int[] starts;
+        private int[] ends;
+        private int count;
+        // tokenize() scratch, kept so repeated calls do not reallocate
+        private FailedPairs failed;
+        private int[] pending = new int[16];
+
+        public Tokens() {
+            this(64);
+        }
+
+        public Tokens(int capacity) {
+            capacity = Math.max(capacity, 1);
+            kinds = new int[capacity];
+            starts = new int[capacity];
+            ends = new int[capacity];
+        }
+
+        void add(int kind, int start, int end) {
+            if (count == kinds.length) {
+                int capacity = kinds.length * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            kinds[count] = kind;
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        public void clear() {
+            count = 0;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public int kind(int index) {
+            checkIndex(index);
+            return kinds[index];
+        }
+
+        public int start(int index) {
+            checkIndex(index);
+            return starts[index];
+        }
+
+        public int end(int index) {
+            checkIndex(index);
+            return ends[index];
+        }
+
+        /** Backing array of kinds; only the first count() entries are valid */
+        public int[] kinds() {
+            return kinds;
+        }
+
+        /** Backing array of start offsets; only the first count() entries are valid */
+        public int[] starts() {
+            return starts;
+        }
+
+        /** Backing array of end offsets; only the first count() entries are valid */
+        public int[] ends() {
+            return ends;
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Token " + index + " of " + count);
+            }
+        }
+    }
+}
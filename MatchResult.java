@@ -0,0 +1,15 @@
+package regex;
+
+/**
+ * Outcome of matching an input against a compiled pattern
+ */
+public enum MatchResult {
+    MATCH,
+    NO_MATCH,
+    /** A resource budget ran out before the match was decided */
+    UNKNOWN;
+    
+    static MatchResult of(boolean matched) {
+        return matched ? MATCH : NO_MATCH;
+    }
+}
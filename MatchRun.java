@@ -0,0 +1,138 @@
+package regex;
+
+import java.util.*;
+
+/**
+ * One match of a compiled pattern on the slow path: enforces the pattern's
+ * resource limits and, when Instrumentation is enabled, collects the
+ * measurements it reports; otherwise a budget costs only its own checks.
+ * Unlimited, uninstrumented matches go straight to DFA.matches instead.
+ */
+final class MatchRun {
+    // How many characters pass between deadline checks
+    private static final int DEADLINE_CHECK_INTERVAL = 1024;
+    
+    int chars;
+    int maxActiveStates;
+    int cacheHits;
+    int cacheMisses;
+    
+    private final RegexEngine.CompiledPattern pattern;
+    private final DFA dfa;
+    private final ResourceLimits limits;
+    private final long deadline;
+    
+    /**
+     * Prepares a match on one of the pattern's DFAs: the full-match DFA or
+     * the searching one
+     */
+    MatchRun(RegexEngine.CompiledPattern pattern, DFA dfa) {
+        this.pattern = pattern;
+        this.dfa = dfa;
+        this.limits = pattern.getLimits();
+        long maxNanos = limits.getMaxMatchNanos();
+        this.deadline = maxNanos == ResourceLimits.UNLIMITED ? 0 : System.nanoTime() + maxNanos;
+    }
+    
+    MatchResult run(String input) {
+        int state = dfa.getStartState();
+        if (Instrumentation.ENABLED) {
+            maxActiveStates = dfa.getNFAStateCount(state);
+        }
+        
+        // A searching DFA is done once it has seen a match
+        while (chars < input.length() && state != DFA.DEAD && state != dfa.getMatchedState()) {
+            if (chars % DEADLINE_CHECK_INTERVAL == 0 || chars >= limits.getMaxSteps()) {
+                MatchResult exceeded = checkMatchLimits();
+                if (exceeded != null) {
+                    return exceeded;
+                }
+            }
+            
+            int cls = dfa.classOf(input.charAt(chars));
+            int next = dfa.cachedTransition(state, cls);
+            if (next == DFA.UNKNOWN) {
+                if (Instrumentation.ENABLED) {
+                    cacheMisses++;
+                }
+                next = dfa.transition(state, cls);
+                if (next == DFA.OVER_BUDGET) {
+                    return cacheLimitExceeded(dfa.getNFAStates(state), input);
+                }
+            } else if (Instrumentation.ENABLED) {
+                cacheHits++;
+            }
+            
+            state = next;
+            chars++;
+            if (Instrumentation.ENABLED) {
+                maxActiveStates = Math.max(maxActiveStates, dfa.getNFAStateCount(state));
+            }
+        }
+        
+        return MatchResult.of(state != DFA.DEAD && dfa.isAccepting(state));
+    }
+    
+    /**
+     * Returns the outcome if the step or time budget has run out, else null
+     */
+    private MatchResult checkMatchLimits() {
+        if (chars >= limits.getMaxSteps()) {
+            return exceeded(ResourceLimits.Limit.STEPS, limits.getMatchLimitAction(),
+                "Match exceeds " + limits.getMaxSteps() + " steps");
+        }
+        if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+            return exceeded(ResourceLimits.Limit.DEADLINE, limits.getMatchLimitAction(),
+                "Match exceeds " + limits.getMaxMatchNanos() + " ns");
+        }
+        return null;
+    }
+    
+    private MatchResult cacheLimitExceeded(Set<State> active, String input) {
+        ResourceLimits.Action action = limits.getCacheLimitAction();
+        MatchResult result = exceeded(ResourceLimits.Limit.DFA_CACHE_BYTES, action,
+            "DFA cache exceeds " + limits.getMaxDFACacheBytes() + " bytes");
+        return action == ResourceLimits.Action.FALLBACK ? simulate(active, input) : result;
+    }
+    
+    /**
+     * Finishes the match by ε-NFA simulation from the given active states
+     */
+    private MatchResult simulate(Set<State> active, String input) {
+        EpsilonNFA nfa = dfa.getNFA();
+        boolean search = dfa.isSearching();
+        Set<State> currentStates = active;
+        
+        while (chars < input.length()) {
+            MatchResult exceeded = checkMatchLimits();
+            if (exceeded != null) {
+                return exceeded;
+            }
+            
+            currentStates = nfa.step(currentStates, input.charAt(chars++), search);
+            if (currentStates == null) {
+                return MatchResult.MATCH;
+            }
+            if (Instrumentation.ENABLED) {
+                maxActiveStates = Math.max(maxActiveStates, currentStates.size());
+            }
+            if (currentStates.isEmpty()) {
+                return MatchResult.NO_MATCH;
+            }
+        }
+        
+        return MatchResult.of(nfa.acceptsAtEnd(currentStates));
+    }
+    
+    private MatchResult exceeded(ResourceLimits.Limit limit, ResourceLimits.Action action,
+                                 String message) {
+        limits.recordHit(limit);
+        if (Instrumentation.ENABLED) {
+            Instrumentation.limitExceeded(pattern.getPattern(), limit);
+        }
+        if (action == ResourceLimits.Action.THROW) {
+            throw new ResourceLimitException(limit, message);
+        }
+        return MatchResult.UNKNOWN;
+    }
+}
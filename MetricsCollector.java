@@ -0,0 +1,189 @@
+package regex;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listener that aggregates measurements per pattern, including a latency
+ * histogram of match times. Register it with Instrumentation.addListener.
+ */
+public class MetricsCollector implements RegexMetricsListener {
+    /** Key used for patterns whose source is not known */
+    public static final String UNKNOWN_PATTERN = "<unknown>";
+    
+    private final Map<String, PatternStats> stats = new ConcurrentHashMap<>();
+    
+    @Override
+    public void patternCompiled(String pattern, long nanos,
+                                int states, int transitions, int epsilonTransitions) {
+        PatternStats entry = statsFor(pattern);
+        entry.compiles.increment();
+        entry.compileNanos.add(nanos);
+        entry.states = states;
+        entry.transitions = transitions;
+        entry.epsilonTransitions = epsilonTransitions;
+    }
+    
+    @Override
+    public void patternMatched(String pattern, long nanos, int chars, int maxActiveStates,
+                               int cacheHits, int cacheMisses, boolean matched) {
+        PatternStats entry = statsFor(pattern);
+        entry.matches.increment();
+        entry.matchNanos.add(nanos);
+        entry.chars.add(chars);
+        entry.maxActiveStates.accumulate(maxActiveStates);
+        entry.cacheHits.add(cacheHits);
+        entry.cacheMisses.add(cacheMisses);
+        entry.latencies.incrementAndGet(PatternStats.bucketOf(nanos));
+    }
+    
+    @Override
+    public void limitExceeded(String pattern, ResourceLimits.Limit limit) {
+        statsFor(pattern).limitHits.increment();
+    }
+    
+    private PatternStats statsFor(String pattern) {
+        return stats.computeIfAbsent(pattern != null ? pattern : UNKNOWN_PATTERN,
+            k -> new PatternStats());
+    }
+    
+    /**
+     * Returns the statistics for a pattern, or null if nothing was recorded
+     */
+    public PatternStats get(String pattern) {
+        return stats.get(pattern != null ? pattern : UNKNOWN_PATTERN);
+    }
+    
+    public Set<String> patterns() {
+        return Collections.unmodifiableSet(stats.keySet());
+    }
+    
+    /**
+     * Returns up to limit patterns, ordered by total time spent matching
+     */
+    public List<String> hottest(int limit) {
+        // Listeners keep updating the sums, so sort a snapshot of them
+        Map<String, Long> matchNanos = new HashMap<>();
+        for (Map.Entry<String, PatternStats> entry : stats.entrySet()) {
+            matchNanos.put(entry.getKey(), entry.getValue().getMatchNanos());
+        }
+        
+        List<String> patterns = new ArrayList<>(matchNanos.keySet());
+        patterns.sort(Comparator.comparingLong((String pattern) -> matchNanos.get(pattern)).reversed());
+        return patterns.subList(0, Math.min(limit, patterns.size()));
+    }
+    
+    public void reset() {
+        stats.clear();
+    }
+    
+    /**
+     * Aggregated measurements for one pattern
+     */
+    public static class PatternStats {
+        /** Latency buckets: bucket i counts matches taking [2^i, 2^(i+1)) ns */
+        public static final int BUCKETS = 64;
+        
+        private final LongAdder compiles = new LongAdder();
+        private final LongAdder compileNanos = new LongAdder();
+        private final LongAdder matches = new LongAdder();
+        private final LongAdder matchNanos = new LongAdder();
+        private final LongAdder chars = new LongAdder();
+        private final LongAccumulator maxActiveStates = new LongAccumulator(Math::max, 0);
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder cacheMisses = new LongAdder();
+        private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+        private final LongAdder limitHits = new LongAdder();
+        private volatile int states;
+        private volatile int transitions;
+        private volatile int epsilonTransitions;
+        
+        static int bucketOf(long nanos) {
+            return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+        }
+        
+        public long getCompileCount() {
+            return compiles.sum();
+        }
+        
+        public long getCompileNanos() {
+            return compileNanos.sum();
+        }
+        
+        public long getMatchCount() {
+            return matches.sum();
+        }
+        
+        public long getMatchNanos() {
+            return matchNanos.sum();
+        }
+        
+        public long getCharCount() {
+            return chars.sum();
+        }
+        
+        public long getMaxActiveStates() {
+            return maxActiveStates.get();
+        }
+        
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+        
+        public long getCacheMisses() {
+            return cacheMisses.sum();
+        }
+        
+        /** Number of times a resource limit was hit */
+        public long getLimitHits() {
+            return limitHits.sum();
+        }
+        
+        /** ε-NFA states of the most recent compile */
+        public int getStates() {
+            return states;
+        }
+        
+        public int getTransitions() {
+            return transitions;
+        }
+        
+        public int getEpsilonTransitions() {
+            return epsilonTransitions;
+        }
+        
+        /**
+         * Returns a copy of the match latency histogram (see BUCKETS)
+         */
+        public long[] getLatencyHistogram() {
+            long[] histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = latencies.get(i);
+            }
+            return histogram;
+        }
+        
+        /**
+         * Returns an upper bound, in nanoseconds, on the given latency
+         * percentile (0-100), from the histogram buckets
+         */
+        public long getLatencyPercentile(double percentile) {
+            long total = getMatchCount();
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += latencies.get(i);
+                if (seen >= threshold) {
+                    return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package regex;
+
+import java.util.*;
+
+/**
+ * Set operations and decision procedures on the languages of compiled
+ * patterns, by product construction on their DFAs.
+ *
+ * Patterns are compared by what matches() accepts (the whole input), with
+ * their flags already compiled in. Results are compiled patterns backed by
+ * a complete DFA and, like loaded patterns, have no ε-NFA: they support
+ * matches() but not find(). Operands are determinized fully first, so
+ * their DFA cache limits apply.
+ */
+public final class PatternAlgebra {
+    private PatternAlgebra() {
+    }
+    
+    /**
+     * Combines the accepting flags of the two halves of a product state
+     */
+    private interface Operation {
+        boolean accepts(boolean first, boolean second);
+    }
+    
+    /**
+     * Returns a pattern matching the inputs both patterns match
+     */
+    public static RegexEngine.CompiledPattern intersection(RegexEngine.CompiledPattern a,
+                                                           RegexEngine.CompiledPattern b) {
+        return pattern(product(a, b, (x, y) -> x && y));
+    }
+    
+    /**
+     * Returns a pattern matching the inputs either pattern matches
+     */
+    public static RegexEngine.CompiledPattern union(RegexEngine.CompiledPattern a,
+                                                    RegexEngine.CompiledPattern b) {
+        return pattern(product(a, b, (x, y) -> x || y));
+    }
+    
+    /**
+     * Returns a pattern matching the inputs a matches and b does not
+     */
+    public static RegexEngine.CompiledPattern difference(RegexEngine.CompiledPattern a,
+                                                         RegexEngine.CompiledPattern b) {
+        return pattern(product(a, b, (x, y) -> x && !y));
+    }
+    
+    /**
+     * Returns a pattern matching exactly the inputs a does not match
+     */
+    public static RegexEngine.CompiledPattern complement(RegexEngine.CompiledPattern a) {
+        return pattern(product(a, a, (x, y) -> !x));
+    }
+    
+    /**
+     * Returns true if the pattern matches no input at all
+     */
+    public static boolean isEmpty(RegexEngine.CompiledPattern a) {
+        return product(a, a, (x, y) -> x).getStartState() == DFA.DEAD;
+    }
+    
+    /**
+     * Returns true if every input a matches is also matched by b
+     */
+    public static boolean isSubsetOf(RegexEngine.CompiledPattern a, RegexEngine.CompiledPattern b) {
+        return product(a, b, (x, y) -> x && !y).getStartState() == DFA.DEAD;
+    }
+    
+    /**
+     * Returns true if both patterns match exactly the same inputs
+     */
+    public static boolean isEquivalent(RegexEngine.CompiledPattern a, RegexEngine.CompiledPattern b) {
+        return product(a, b, (x, y) -> x != y).getStartState() == DFA.DEAD;
+    }
+    
+    /**
+     * Returns a shortest input the pattern matches (preferring printable
+     * ASCII characters), or null if it matches nothing
+     */
+    public static String example(RegexEngine.CompiledPattern a) {
+        DFA dfa = a.getDFA().determinize();
+        char[] representatives = representatives(dfa.getClassMap(), dfa.getClassCount());
+        
+        // Breadth-first search from the start state, remembering how each
+        // state was first reached
+        Map<Integer, Integer> previous = new HashMap<>();
+        Map<Integer, Character> via = new HashMap<>();
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(dfa.getStartState());
+        previous.put(dfa.getStartState(), -1);
+        
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            if (dfa.isAccepting(state)) {
+                StringBuilder input = new StringBuilder();
+                for (int s = state; previous.get(s) != -1; s = previous.get(s)) {
+                    input.append(via.get(s));
+                }
+                return input.reverse().toString();
+            }
+            for (int cls = 0; cls < dfa.getClassCount(); cls++) {
+                int next = dfa.transition(state, cls);
+                if (next != DFA.DEAD && representatives[cls] != 0 && !previous.containsKey(next)) {
+                    previous.put(next, state);
+                    via.put(next, representatives[cls]);
+                    queue.add(next);
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Picks a character of each class, or '\0' if a class has none
+     */
+    private static char[] representatives(char[] classMap, int classCount) {
+        char[] representatives = new char[classCount];
+        for (char c = ' '; c <= '~'; c++) {
+            int cls = c < classMap.length ? classMap[c] : 0;
+            if (representatives[cls] == 0) {
+                representatives[cls] = c;
+            }
+        }
+        for (int c = 1; c <= Character.MAX_VALUE; c++) {
+            int cls = c < classMap.length ? classMap[c] : 0;
+            if (representatives[cls] == 0) {
+                representatives[cls] = (char) c;
+            }
+        }
+        return representatives;
+    }
+    
+    private static RegexEngine.CompiledPattern pattern(DFA dfa) {
+        return new RegexEngine.CompiledPattern(null, dfa);
+    }
+    
+    /**
+     * Builds the product DFA of two patterns, accepting where op does.
+     * States that cannot reach an accepting state are merged into the dead
+     * state, so the result matches nothing exactly if its start state is dead.
+     */
+    private static DFA product(RegexEngine.CompiledPattern a, RegexEngine.CompiledPattern b,
+                               Operation op) {
+        DFA first = a.getDFA().determinize();
+        DFA second = b == a ? first : b.getDFA().determinize();
+        
+        // Product classes are the distinct pairs of operand classes; class 0
+        // is the pair of the characters beyond both class maps
+        char[] firstMap = first.getClassMap();
+        char[] secondMap = second.getClassMap();
+        int length = Math.max(firstMap.length, secondMap.length);
+        char[] classMap = new char[length];
+        Map<Long, Integer> classIds = new HashMap<>();
+        List<int[]> classPairs = new ArrayList<>();
+        classIds.put(0L, 0);
+        classPairs.add(new int[] {0, 0});
+        for (int c = 0; c < length; c++) {
+            int x = c < firstMap.length ? firstMap[c] : 0;
+            int y = c < secondMap.length ? secondMap[c] : 0;
+            long key = ((long) x << 32) | y;
+            Integer cls = classIds.get(key);
+            if (cls == null) {
+                cls = classPairs.size();
+                classIds.put(key, cls);
+                classPairs.add(new int[] {x, y});
+            }
+            classMap[c] = (char) cls.intValue();
+        }
+        int classCount = classPairs.size();
+        
+        // Explore the reachable pairs; id 0 is kept for the dead state
+        Map<Long, Integer> stateIds = new HashMap<>();
+        List<int[]> statePairs = new ArrayList<>();
+        List<int[]> rows = new ArrayList<>();
+        statePairs.add(null);
+        rows.add(new int[classCount]);
+        int start = pairState(first.getStartState(), second.getStartState(), stateIds, statePairs);
+        for (int state = 1; state < statePairs.size(); state++) {
+            int[] pair = statePairs.get(state);
+            int[] row = new int[classCount];
+            for (int cls = 0; cls < classCount; cls++) {
+                int[] classPair = classPairs.get(cls);
+                row[cls] = pairState(first.transition(pair[0], classPair[0]),
+                    second.transition(pair[1], classPair[1]), stateIds, statePairs);
+            }
+            rows.add(row);
+        }
+        
+        int stateCount = statePairs.size();
+        boolean[] accepting = new boolean[stateCount];
+        for (int state = 1; state < stateCount; state++) {
+            int[] pair = statePairs.get(state);
+            accepting[state] = op.accepts(first.isAccepting(pair[0]), second.isAccepting(pair[1]));
+        }
+        
+        // Keep only states that can still reach an accepting state, found
+        // by walking the transitions backwards from the accepting ones
+        List<List<Integer>> sources = new ArrayList<>();
+        for (int state = 0; state < stateCount; state++) {
+            sources.add(new ArrayList<>());
+        }
+        for (int state = 1; state < stateCount; state++) {
+            for (int target : rows.get(state)) {
+                sources.get(target).add(state);
+            }
+        }
+        boolean[] live = accepting.clone();
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int state = 1; state < stateCount; state++) {
+            if (live[state]) {
+                queue.add(state);
+            }
+        }
+        while (!queue.isEmpty()) {
+            for (int source : sources.get(queue.poll())) {
+                if (!live[source]) {
+                    live[source] = true;
+                    queue.add(source);
+                }
+            }
+        }
+        
+        int[] renumbered = new int[stateCount];
+        int liveCount = 1;
+        for (int state = 1; state < stateCount; state++) {
+            renumbered[state] = live[state] ? liveCount++ : DFA.DEAD;
+        }
+        int[][] table = new int[liveCount][];
+        boolean[] liveAccepting = new boolean[liveCount];
+        table[DFA.DEAD] = new int[classCount];
+        for (int state = 1; state < stateCount; state++) {
+            if (live[state]) {
+                int[] row = rows.get(state);
+                int[] liveRow = new int[classCount];
+                for (int cls = 0; cls < classCount; cls++) {
+                    liveRow[cls] = renumbered[row[cls]];
+                }
+                table[renumbered[state]] = liveRow;
+                liveAccepting[renumbered[state]] = accepting[state];
+            }
+        }
+        
+        return new DFA(classMap, classCount, renumbered[start], liveAccepting, table);
+    }
+    
+    private static int pairState(int x, int y, Map<Long, Integer> stateIds, List<int[]> statePairs) {
+        long key = ((long) x << 32) | y;
+        Integer id = stateIds.get(key);
+        if (id == null) {
+            id = statePairs.size();
+            stateIds.put(key, id);
+            statePairs.add(new int[] {x, y});
+        }
+        return id;
+    }
+}
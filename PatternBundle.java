@@ -0,0 +1,368 @@
+package regex;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A file holding many named compiled patterns. Bundles are memory-mapped and
+ * matched directly against the mapped transition tables, so opening one costs
+ * no parsing, determinization or deserialization.
+ *
+ * The same image can be built in off-heap memory with offHeap(), which keeps
+ * the transition tables of large pattern sets out of the Java heap and away
+ * from GC scanning. Closing a bundle ends the lifetime of all its patterns
+ * (see close()).
+ *
+ * Bundle layout (big-endian):
+ * <pre>
+ *   int    magic            'RXBN'
+ *   short  version
+ *   short  reserved
+ *   int    count
+ *   count x { int nameLength; byte name[nameLength]; int offset; int length }
+ *                           names in UTF-8, offsets from start of file
+ *   pattern images (see PatternSerializer)
+ * </pre>
+ */
+public final class PatternBundle implements AutoCloseable {
+    public static final int MAGIC = 0x5258424E;
+    public static final short VERSION = 2;
+
+    private static final VarHandle INT =
+        MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle CHAR =
+        MethodHandles.byteBufferViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+
+    // Replaced by an empty map on close, dropping the bundle's references
+    // to the mapped or off-heap memory
+    private volatile Map<String, MappedPattern> patterns = Collections.emptyMap();
+    private volatile boolean closed;
+
+    private PatternBundle() {
+    }
+
+    /**
+     * Writes the given patterns to a bundle file, in map iteration order
+     */
+    public static void write(Map<String, RegexEngine.CompiledPattern> patterns, Path file)
+            throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(patterns, out);
+        }
+    }
+
+    /**
+     * Builds a bundle of the given patterns in off-heap memory. Only the
+     * transition tables are kept, so the compiled patterns (and their
+     * ε-NFAs) can be discarded afterwards. The image is sized up front and
+     * serialized straight into the direct buffer, so it is never copied
+     * through the heap.
+     */
+    public static PatternBundle offHeap(Map<String, RegexEngine.CompiledPattern> patterns) {
+        List<String> names = new ArrayList<>(patterns.keySet());
+        long[] sizes = imageSizes(patterns, names);
+        long total = headerSize(names);
+        for (long size : sizes) {
+            total += size;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bundle exceeds 2 GB: " + total + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) total);
+        try {
+            write(patterns, names, sizes, new BufferOutputStream(buffer));
+            buffer.flip();
+            return wrap(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Off-heap bundle is unreadable", e);
+        }
+    }
+
+    /**
+     * Writes the given patterns as a bundle image, in map iteration order.
+     * Patterns are serialized one at a time, straight to out.
+     */
+    public static void write(Map<String, RegexEngine.CompiledPattern> patterns, OutputStream out)
+            throws IOException {
+        List<String> names = new ArrayList<>(patterns.keySet());
+        write(patterns, names, imageSizes(patterns, names), out);
+    }
+
+    private static void write(Map<String, RegexEngine.CompiledPattern> patterns, List<String> names,
+                              long[] sizes, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeShort(0);
+        data.writeInt(names.size());
+
+        long offset = headerSize(names);
+        for (int i = 0; i < names.size(); i++) {
+            if (offset + sizes[i] > Integer.MAX_VALUE) {
+                throw new IOException("Bundle exceeds 2 GB at pattern " + names.get(i));
+            }
+            PatternSerializer.writeString(data, names.get(i));
+            data.writeInt((int) offset);
+            data.writeInt((int) sizes[i]);
+            offset += sizes[i];
+        }
+
+        for (String name : names) {
+            PatternSerializer.write(patterns.get(name), data);
+        }
+        data.flush();
+    }
+
+    private static long[] imageSizes(Map<String, RegexEngine.CompiledPattern> patterns, List<String> names) {
+        long[] sizes = new long[names.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = PatternSerializer.imageSize(patterns.get(names.get(i)));
+        }
+        return sizes;
+    }
+
+    private static long headerSize(List<String> names) {
+        // magic, version, reserved and count, then per entry the name and
+        // its int length, offset and image length
+        long size = 12;
+        for (String name : names) {
+            size += 12 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    /**
+     * Memory-maps a bundle file. Only the index is read; pattern tables stay
+     * in the mapping until they are matched against.
+     */
+    public static PatternBundle open(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return wrap(buffer);
+    }
+
+    /**
+     * Reads a bundle from a buffer holding its bytes. The buffer is used in
+     * place, so a direct buffer keeps the tables off-heap.
+     */
+    public static PatternBundle wrap(ByteBuffer buffer) throws IOException {
+        PatternBundle bundle = new PatternBundle();
+        Map<String, MappedPattern> patterns = new LinkedHashMap<>();
+        try {
+            ByteBuffer index = buffer.duplicate();
+            if (index.getInt() != MAGIC) {
+                throw new IOException("Not a pattern bundle");
+            }
+            short version = index.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported pattern bundle version: " + version);
+            }
+            index.getShort();
+
+            int count = index.getInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(index);
+                int offset = index.getInt();
+                int length = index.getInt();
+                if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+                    throw new IOException("Corrupt bundle entry: " + name);
+                }
+                ByteBuffer image = buffer.duplicate().position(offset).limit(offset + length).slice();
+                patterns.put(name, new MappedPattern(bundle, image));
+            }
+            bundle.patterns = Collections.unmodifiableMap(patterns);
+            return bundle;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt pattern bundle", e);
+        }
+    }
+
+    /**
+     * Reads a string written by PatternSerializer.writeString()
+     */
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Corrupt string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the pattern names, or no names once the bundle is closed
+     */
+    public Set<String> names() {
+        return patterns.keySet();
+    }
+
+    /**
+     * Returns the pattern stored under name, or null if there is none
+     *
+     * @throws IllegalStateException if the bundle is closed
+     */
+    public MappedPattern get(String name) {
+        if (closed) {
+            throw new IllegalStateException("Pattern bundle is closed");
+        }
+        return patterns.get(name);
+    }
+
+    public int size() {
+        return patterns.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Invalidates the bundle: its patterns can no longer be looked up or
+     * matched, and the bundle drops its references to their memory. Java
+     * cannot unmap or free a buffer explicitly, so the mapping or off-heap
+     * buffer is only released by the garbage collector, once neither the
+     * bundle nor any MappedPattern taken from it is reachable. A match that
+     * is already running when the bundle is closed completes normally.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        patterns = Collections.emptyMap();
+    }
+
+    /**
+     * Writes into a buffer sized for everything written to it
+     */
+    private static final class BufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        BufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            buffer.put(bytes, offset, length);
+        }
+    }
+
+    /**
+     * A compiled pattern matched in place against its binary image. It
+     * keeps its part of the bundle's memory reachable.
+     */
+    public static class MappedPattern {
+        private final PatternBundle bundle;
+        private final ByteBuffer image;
+        private final String pattern;
+        private final int classMapOffset;
+        private final int classMapLength;
+        private final int classCount;
+        private final int stateCount;
+        private final int startState;
+        private final int acceptingOffset;
+        private final int tableOffset;
+
+        MappedPattern(PatternBundle bundle, ByteBuffer image) throws IOException {
+            this.bundle = bundle;
+            this.image = image;
+
+            ByteBuffer header = image.duplicate();
+            if (header.getInt() != PatternSerializer.MAGIC) {
+                throw new IOException("Not a compiled pattern image");
+            }
+            short version = header.getShort();
+            if (version != PatternSerializer.VERSION) {
+                throw new IOException("Unsupported compiled pattern version: " + version);
+            }
+            short flags = header.getShort();
+            this.pattern = (flags & PatternSerializer.FLAG_HAS_SOURCE) != 0 ? readString(header) : null;
+
+            this.classMapLength = header.getInt();
+            this.classCount = header.getInt();
+            this.stateCount = header.getInt();
+            this.startState = header.getInt();
+            PatternSerializer.checkHeader(classMapLength, classCount, stateCount, startState);
+
+            long end = header.position() + 2L * classMapLength + stateCount + 4L * stateCount * classCount;
+            if (end > image.limit()) {
+                throw new IOException("Truncated compiled pattern image");
+            }
+            this.classMapOffset = header.position();
+            this.acceptingOffset = classMapOffset + classMapLength * 2;
+            this.tableOffset = acceptingOffset + stateCount;
+            for (int i = 0; i < classMapLength; i++) {
+                if ((char) CHAR.get(image, classMapOffset + 2 * i) >= classCount) {
+                    throw new IOException("Corrupt class map entry at " + i);
+                }
+            }
+        }
+
+        /**
+         * Matches input against the mapped tables. The bundle is checked
+         * for being open before the match starts, not during it.
+         *
+         * @throws IllegalStateException if the bundle is closed
+         */
+        public boolean matches(String input) {
+            checkOpen();
+            if (input == null) {
+                input = "";
+            }
+
+            int state = startState;
+            for (int i = 0; i < input.length(); i++) {
+                char c = input.charAt(i);
+                int cls = c < classMapLength ? (char) CHAR.get(image, classMapOffset + 2 * c) : 0;
+                state = (int) INT.get(image, tableOffset + 4 * (state * classCount + cls));
+                if (state == DFA.DEAD) {
+                    return false;
+                }
+                if (state < 0 || state >= stateCount) {
+                    throw new IllegalStateException("Corrupt transition target: " + state);
+                }
+            }
+
+            return image.get(acceptingOffset + state) != 0;
+        }
+
+        /**
+         * Returns the source pattern, or null if it was not stored
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        /**
+         * Copies the mapped tables into an on-heap compiled pattern
+         */
+        public RegexEngine.CompiledPattern load() throws IOException {
+            checkOpen();
+            byte[] bytes = new byte[image.limit()];
+            image.duplicate().get(bytes);
+            return PatternSerializer.fromBytes(bytes);
+        }
+
+        private void checkOpen() {
+            if (bundle.closed) {
+                throw new IllegalStateException("Pattern bundle is closed");
+            }
+        }
+    }
+}
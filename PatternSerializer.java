@@ -0,0 +1,203 @@
+package regex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads and writes compiled patterns in a compact, versioned binary format,
+ * so patterns can be compiled once and loaded later without re-parsing or
+ * re-determinizing them.
+ *
+ * Image layout (big-endian):
+ * <pre>
+ *   int    magic            'RXDF'
+ *   short  version
+ *   short  flags            bit 0: pattern source follows
+ *   [int   patternLength    UTF-8 bytes
+ *    byte  pattern[patternLength]]
+ *   int    classMapLength
+ *   int    classCount
+ *   int    stateCount
+ *   int    startState
+ *   char   classMap[classMapLength]
+ *   byte   accepting[stateCount]
+ *   int    table[stateCount * classCount]   row-major, one row per state
+ * </pre>
+ */
+public final class PatternSerializer {
+    public static final int MAGIC = 0x52584446;
+    public static final short VERSION = 2;
+
+    static final short FLAG_HAS_SOURCE = 1;
+
+    private PatternSerializer() {
+    }
+
+    /**
+     * Writes a compiled pattern, determinizing it fully first
+     */
+    public static void write(RegexEngine.CompiledPattern pattern, OutputStream out) throws IOException {
+        DFA dfa = pattern.getDFA().determinize();
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+
+        char[] classMap = dfa.getClassMap();
+        int classCount = dfa.getClassCount();
+        int stateCount = dfa.getStateCount();
+
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeShort(pattern.getPattern() != null ? FLAG_HAS_SOURCE : 0);
+        if (pattern.getPattern() != null) {
+            writeString(data, pattern.getPattern());
+        }
+        data.writeInt(classMap.length);
+        data.writeInt(classCount);
+        data.writeInt(stateCount);
+        data.writeInt(dfa.getStartState());
+
+        for (char cls : classMap) {
+            data.writeChar(cls);
+        }
+        for (int state = 0; state < stateCount; state++) {
+            data.writeByte(dfa.isAccepting(state) ? 1 : 0);
+        }
+        for (int state = 0; state < stateCount; state++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                data.writeInt(dfa.transition(state, cls));
+            }
+        }
+
+        data.flush();
+    }
+
+    /**
+     * Returns the length of the image write() produces, determinizing the
+     * pattern fully first
+     */
+    static long imageSize(RegexEngine.CompiledPattern pattern) {
+        DFA dfa = pattern.getDFA().determinize();
+        // magic, version and flags, then the four int sizes
+        long size = 8 + 16;
+        if (pattern.getPattern() != null) {
+            size += 4 + pattern.getPattern().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size + 2L * dfa.getClassMap().length + dfa.getStateCount()
+            + 4L * dfa.getStateCount() * dfa.getClassCount();
+    }
+
+    public static byte[] toBytes(RegexEngine.CompiledPattern pattern) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(pattern, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a compiled pattern written by write()
+     */
+    public static RegexEngine.CompiledPattern read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a compiled pattern image");
+        }
+        short version = data.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported compiled pattern version: " + version);
+        }
+        short flags = data.readShort();
+        String source = (flags & FLAG_HAS_SOURCE) != 0 ? readString(data) : null;
+
+        int classMapLength = data.readInt();
+        int classCount = data.readInt();
+        int stateCount = data.readInt();
+        int startState = data.readInt();
+        checkHeader(classMapLength, classCount, stateCount, startState);
+
+        char[] classMap = new char[classMapLength];
+        for (int i = 0; i < classMapLength; i++) {
+            classMap[i] = data.readChar();
+            if (classMap[i] >= classCount) {
+                throw new IOException("Corrupt class map entry: " + (int) classMap[i]);
+            }
+        }
+
+        // The header sizes are not trusted for allocation: the flags and rows
+        // are allocated as they are read, so a truncated or corrupt image
+        // fails at its end rather than demanding the table it claims
+        byte[] flagBytes = data.readNBytes(stateCount);
+        if (flagBytes.length != stateCount) {
+            throw new EOFException("Truncated accepting flags");
+        }
+        boolean[] accepting = new boolean[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            accepting[state] = flagBytes[state] != 0;
+        }
+
+        int[][] rows = new int[Math.min(stateCount, 1024)][];
+        for (int state = 0; state < stateCount; state++) {
+            if (state == rows.length) {
+                rows = Arrays.copyOf(rows, (int) Math.min(stateCount, 2L * rows.length));
+            }
+            int[] row = new int[classCount];
+            for (int cls = 0; cls < classCount; cls++) {
+                int target = data.readInt();
+                if (target < 0 || target >= stateCount) {
+                    throw new IOException("Corrupt transition target: " + target);
+                }
+                row[cls] = target;
+            }
+            rows[state] = row;
+        }
+
+        return new RegexEngine.CompiledPattern(source,
+            new DFA(classMap, classCount, startState, accepting, rows));
+    }
+
+    public static RegexEngine.CompiledPattern fromBytes(byte[] image) throws IOException {
+        return read(new ByteArrayInputStream(image));
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes, which unlike writeUTF
+     * has no 64 KB limit
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt string length: " + length);
+        }
+        // readNBytes() grows its buffer as data arrives, so a corrupt length
+        // fails at the end of the stream instead of allocating it up front
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Truncated string");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void checkHeader(int classMapLength, int classCount, int stateCount, int startState)
+            throws IOException {
+        if (classMapLength < 0 || classMapLength > Character.MAX_VALUE + 1) {
+            throw new IOException("Corrupt class map length: " + classMapLength);
+        }
+        // Class ids are chars, so there are at most 65536 classes
+        if (classCount < 1 || classCount > Character.MAX_VALUE + 1 || stateCount < 1) {
+            throw new IOException("Corrupt automaton size: " + stateCount + " states, "
+                + classCount + " classes");
+        }
+        if (startState < 0 || startState >= stateCount) {
+            throw new IOException("Corrupt start state: " + startState);
+        }
+    }
+}
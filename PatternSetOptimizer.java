@@ -0,0 +1,129 @@
+package regex;
+
+import java.util.*;
+
+/**
+ * Finds redundant patterns in a set of named filters with PatternAlgebra:
+ * filters that never match, filters equivalent to an earlier one, and
+ * filters whose matches are all matches of another filter.
+ *
+ * Routing can use the result to skip work: a never-matching filter needs
+ * no evaluation, an equivalent filter shares its representative's outcome,
+ * and a subsumed filter cannot match an input its containing filter
+ * rejected. Analysis compares every pair of patterns, so it belongs at
+ * registration time rather than on the matching path.
+ */
+public final class PatternSetOptimizer {
+    private PatternSetOptimizer() {
+    }
+    
+    /**
+     * Analyzes the given patterns, in map iteration order; among
+     * equivalent patterns the first one is the representative
+     */
+    public static Analysis analyze(Map<String, RegexEngine.CompiledPattern> patterns) {
+        Analysis analysis = new Analysis(patterns.keySet());
+        List<String> distinct = new ArrayList<>();
+        
+        for (Map.Entry<String, RegexEngine.CompiledPattern> entry : patterns.entrySet()) {
+            String name = entry.getKey();
+            RegexEngine.CompiledPattern pattern = entry.getValue();
+            if (PatternAlgebra.isEmpty(pattern)) {
+                analysis.neverMatching.add(name);
+                continue;
+            }
+            
+            String representative = null;
+            for (String other : distinct) {
+                if (PatternAlgebra.isEquivalent(pattern, patterns.get(other))) {
+                    representative = other;
+                    break;
+                }
+            }
+            if (representative != null) {
+                analysis.equivalents.put(name, representative);
+            } else {
+                distinct.add(name);
+            }
+        }
+        
+        // Containment among the distinct patterns is strict
+        for (String name : distinct) {
+            Set<String> containers = new LinkedHashSet<>();
+            for (String other : distinct) {
+                if (!other.equals(name) && PatternAlgebra.isSubsetOf(patterns.get(name), patterns.get(other))) {
+                    containers.add(other);
+                }
+            }
+            if (!containers.isEmpty()) {
+                analysis.containers.put(name, Collections.unmodifiableSet(containers));
+            }
+        }
+        
+        return analysis;
+    }
+    
+    /**
+     * Throws if a pattern can never match, so dead filters can be rejected
+     * when they are registered
+     */
+    public static void requireSatisfiable(RegexEngine.CompiledPattern pattern) {
+        if (PatternAlgebra.isEmpty(pattern)) {
+            throw new IllegalArgumentException("Pattern never matches: " + pattern.getPattern());
+        }
+    }
+    
+    /**
+     * Redundancies found in a pattern set, by pattern name
+     */
+    public static class Analysis {
+        private final List<String> names;
+        private final Set<String> neverMatching = new LinkedHashSet<>();
+        private final Map<String, String> equivalents = new LinkedHashMap<>();
+        private final Map<String, Set<String>> containers = new LinkedHashMap<>();
+        
+        Analysis(Collection<String> names) {
+            this.names = new ArrayList<>(names);
+        }
+        
+        /**
+         * Returns the patterns that match no input
+         */
+        public Set<String> getNeverMatching() {
+            return Collections.unmodifiableSet(neverMatching);
+        }
+        
+        /**
+         * Maps each pattern equivalent to an earlier one to that representative
+         */
+        public Map<String, String> getEquivalents() {
+            return Collections.unmodifiableMap(equivalents);
+        }
+        
+        /**
+         * Maps each representative pattern to the other representatives that
+         * match everything it matches, and more
+         */
+        public Map<String, Set<String>> getContainers() {
+            return Collections.unmodifiableMap(containers);
+        }
+        
+        /**
+         * Returns the patterns that must still be evaluated: those that can
+         * match and are not equivalent to an earlier pattern
+         */
+        public Set<String> getRequired() {
+            Set<String> required = new LinkedHashSet<>(names);
+            required.removeAll(neverMatching);
+            required.removeAll(equivalents.keySet());
+            return required;
+        }
+        
+        /**
+         * Returns true if the pattern never matches or duplicates an earlier one
+         */
+        public boolean isRedundant(String name) {
+            return neverMatching.contains(name) || equivalents.containsKey(name);
+        }
+    }
+}
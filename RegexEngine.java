@@ -1,57 +1,369 @@
 package regex;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
 /**
- * Main regex engine class that combines parsing and matching
+ * Main regex engine class that combines parsing and matching.
+ *
+ * An engine shares structure between the patterns it compiles: compiling
+ * the same pattern (with the same flags and limits) again returns the same
+ * compiled pattern, and equal DFA class maps and transition rows are stored
+ * once through the engine's Interner. Both are weakly held, so patterns and
+ * tables nobody uses any more are garbage collected. Compiled patterns keep
+ * no ε-NFA of their own; their DFAs drop it once complete.
  */
 public class RegexEngine {
-    private RegexParser parser;
+    /** Compile flag: ASCII letters match regardless of case */
+    public static final int CASE_INSENSITIVE = 1;
+    
+    /** Compile flag: ^ and $ also match just after and before line breaks */
+    public static final int MULTILINE = 2;
+    
+    private final ResourceLimits limits;
+    private final Interner interner = new Interner();
+    
+    // Compiled patterns by source, flags and limits; only weakly held
+    private final Map<PatternKey, PatternRef> patterns = new HashMap<>();
+    private final ReferenceQueue<CompiledPattern> collected = new ReferenceQueue<>();
     
     public RegexEngine() {
-        this.parser = new RegexParser();
+        this(new ResourceLimits());
+    }
+    
+    /**
+     * Creates an engine whose patterns are compiled and matched within limits
+     */
+    public RegexEngine(ResourceLimits limits) {
+        this.limits = limits;
     }
     
     /**
      * Compiles a regex pattern into an ε-NFA
      */
     public EpsilonNFA compile(String pattern) {
+        return compile(pattern, 0, limits);
+    }
+    
+    /**
+     * Compiles a regex pattern into an ε-NFA with flags, a combination of
+     * CASE_INSENSITIVE and MULTILINE
+     */
+    public EpsilonNFA compile(String pattern, int flags) {
+        return compile(pattern, flags, limits);
+    }
+    
+    private EpsilonNFA compile(String pattern, int flags, ResourceLimits limits) {
         if (pattern == null || pattern.isEmpty()) {
             throw new IllegalArgumentException("Pattern cannot be null or empty");
         }
+        if ((flags & ~(CASE_INSENSITIVE | MULTILINE)) != 0) {
+            throw new IllegalArgumentException("Unknown flags: " + flags);
+        }
         
+        RegexParser parser = new RegexParser(limits.getMaxNFAStates());
         try {
-            return parser.parse(pattern);
+            if (Instrumentation.ENABLED) {
+                return Instrumentation.compile(parser, pattern, flags);
+            }
+            return parser.parse(pattern, flags);
+        } catch (ResourceLimitException e) {
+            limits.recordHit(e.getLimit());
+            if (Instrumentation.ENABLED) {
+                Instrumentation.limitExceeded(pattern, e.getLimit());
+            }
+            throw e;
         } catch (Exception e) {
             throw new IllegalArgumentException("Invalid regex pattern: " + pattern, e);
         }
     }
     
     /**
-     * Tests if input matches the pattern
+     * Tests if input matches the pattern, within this engine's limits. An
+     * UNKNOWN result (a match limit ran out) reads as no match.
+     *
+     * @throws ResourceLimitException if a limit whose action is THROW runs out
      */
     public boolean matches(String pattern, String input) {
-        EpsilonNFA nfa = compile(pattern);
-        return nfa.matches(input != null ? input : "");
+        return compilePattern(pattern).matches(input);
     }
     
     /**
      * Creates a compiled pattern that can be reused
      */
     public CompiledPattern compilePattern(String pattern) {
-        return new CompiledPattern(compile(pattern));
+        return compilePattern(pattern, 0, limits);
+    }
+    
+    /**
+     * Creates a compiled pattern with its own resource limits
+     */
+    public CompiledPattern compilePattern(String pattern, ResourceLimits limits) {
+        return compilePattern(pattern, 0, limits);
+    }
+    
+    /**
+     * Creates a compiled pattern with flags
+     */
+    public CompiledPattern compilePattern(String pattern, int flags) {
+        return compilePattern(pattern, flags, limits);
+    }
+    
+    /**
+     * Creates a compiled pattern with flags and its own resource limits, or
+     * returns the one this engine already compiled for them
+     */
+    public CompiledPattern compilePattern(String pattern, int flags, ResourceLimits limits) {
+        PatternKey key = new PatternKey(pattern, flags, limits);
+        CompiledPattern shared = cachedPattern(key);
+        if (shared != null) {
+            return shared;
+        }
+        
+        CompiledPattern compiled = new CompiledPattern(pattern, compile(pattern, flags, limits),
+            limits, interner, true);
+        synchronized (patterns) {
+            // Another thread may have compiled the same pattern meanwhile
+            shared = cachedPattern(key);
+            if (shared != null) {
+                return shared;
+            }
+            patterns.put(key, new PatternRef(key, compiled, collected));
+        }
+        return compiled;
+    }
+    
+    private CompiledPattern cachedPattern(PatternKey key) {
+        synchronized (patterns) {
+            PatternRef ref;
+            while ((ref = (PatternRef) collected.poll()) != null) {
+                patterns.remove(ref.key, ref);
+            }
+            ref = patterns.get(key);
+            return ref != null ? ref.get() : null;
+        }
+    }
+    
+    /**
+     * Returns how many compiled patterns this engine currently shares
+     */
+    public int getCachedPatternCount() {
+        synchronized (patterns) {
+            int count = 0;
+            for (PatternRef ref : patterns.values()) {
+                if (ref.get() != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Returns the interner holding the DFA tables shared by this engine's patterns
+     */
+    public Interner getInterner() {
+        return interner;
+    }
+    
+    public ResourceLimits getLimits() {
+        return limits;
+    }
+    
+    private static final class PatternKey {
+        private final String pattern;
+        private final int flags;
+        private final ResourceLimits limits;
+        
+        PatternKey(String pattern, int flags, ResourceLimits limits) {
+            this.pattern = pattern;
+            this.flags = flags;
+            this.limits = limits;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PatternKey)) {
+                return false;
+            }
+            PatternKey other = (PatternKey) o;
+            // Limits are mutable and count hits, so only the same instance is equal
+            return Objects.equals(pattern, other.pattern) && flags == other.flags
+                && limits == other.limits;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(pattern) * 31 + flags * 17 + System.identityHashCode(limits);
+        }
+    }
+    
+    private static final class PatternRef extends WeakReference<CompiledPattern> {
+        private final PatternKey key;
+        
+        PatternRef(PatternKey key, CompiledPattern pattern, ReferenceQueue<CompiledPattern> queue) {
+            super(pattern, queue);
+            this.key = key;
+        }
     }
     
     /**
-     * Wrapper class for compiled patterns
+     * Wrapper class for compiled patterns. Matching runs on a DFA that is
+     * determinized lazily from the ε-NFA as inputs exercise it.
      */
     public static class CompiledPattern {
+        private final String pattern;
         private final EpsilonNFA nfa;
+        private final int flags;
+        private final boolean rebuildable;
+        private final DFA dfa;
+        private final ResourceLimits limits;
+        private final Interner interner;
+        private volatile DFA searchDfa;
         
         public CompiledPattern(EpsilonNFA nfa) {
-            this.nfa = nfa;
+            this(null, nfa);
+        }
+        
+        public CompiledPattern(String pattern, EpsilonNFA nfa) {
+            this(pattern, nfa, new ResourceLimits());
+        }
+        
+        public CompiledPattern(String pattern, EpsilonNFA nfa, ResourceLimits limits) {
+            this(pattern, nfa, limits, null);
+        }
+        
+        /**
+         * Creates a pattern whose DFA tables are shared through interner
+         */
+        public CompiledPattern(String pattern, EpsilonNFA nfa, ResourceLimits limits, Interner interner) {
+            this(pattern, nfa, limits, interner, false);
+        }
+        
+        /**
+         * Creates a pattern that, if rebuildable, does not hold on to its
+         * ε-NFA: the DFAs keep it until they are complete, and getNFA()
+         * parses the source again after that
+         */
+        CompiledPattern(String pattern, EpsilonNFA nfa, ResourceLimits limits, Interner interner,
+                        boolean rebuildable) {
+            this.pattern = pattern;
+            this.nfa = rebuildable ? null : nfa;
+            this.flags = nfa.getFlags();
+            this.rebuildable = rebuildable;
+            this.dfa = new DFA(nfa, limits, false, interner);
+            this.limits = limits;
+            this.interner = interner;
+        }
+        
+        /**
+         * Creates a pattern from an already determinized automaton
+         * (e.g. one loaded by PatternSerializer); it has no ε-NFA
+         */
+        public CompiledPattern(String pattern, DFA dfa) {
+            this.pattern = pattern;
+            this.nfa = null;
+            this.flags = 0;
+            this.rebuildable = false;
+            this.dfa = dfa;
+            this.limits = new ResourceLimits();
+            this.interner = null;
         }
         
+        /**
+         * Tests if input matches the pattern. An UNKNOWN result (a resource
+         * limit ran out) reads as no match; use match() to tell them apart.
+         */
         public boolean matches(String input) {
-            return nfa.matches(input != null ? input : "");
+            return match(input) == MatchResult.MATCH;
+        }
+        
+        /**
+         * Matches input within the pattern's resource limits
+         *
+         * @throws ResourceLimitException if a limit whose action is THROW runs out
+         */
+        public MatchResult match(String input) {
+            return run(dfa, input);
+        }
+        
+        /**
+         * Tests if some substring of input matches the pattern. An UNKNOWN
+         * result reads as not found; use search() to tell them apart.
+         */
+        public boolean find(String input) {
+            return search(input) == MatchResult.MATCH;
+        }
+        
+        /**
+         * Searches input for a match within the pattern's resource limits.
+         * The scan is a single pass that stops at the end of the first match.
+         *
+         * @throws ResourceLimitException if a limit whose action is THROW runs out
+         * @throws IllegalStateException for patterns loaded from a binary image
+         */
+        public MatchResult search(String input) {
+            return run(getSearchDFA(), input);
+        }
+        
+        private MatchResult run(DFA automaton, String input) {
+            String text = input != null ? input : "";
+            if (Instrumentation.ENABLED) {
+                return Instrumentation.match(this, automaton, text);
+            }
+            if (limits.isMatchUnlimited()) {
+                return MatchResult.of(automaton.matches(text));
+            }
+            return new MatchRun(this, automaton).run(text);
+        }
+        
+        /**
+         * Returns the source pattern, or null if it is not known
+         */
+        public String getPattern() {
+            return pattern;
+        }
+        
+        /**
+         * Returns the ε-NFA, or null for patterns loaded from a binary image.
+         * Patterns compiled by an engine keep no ε-NFA of their own, so this
+         * may return a fresh copy parsed from the source.
+         */
+        public EpsilonNFA getNFA() {
+            if (!rebuildable) {
+                return nfa;
+            }
+            EpsilonNFA current = dfa.getNFA();
+            return current != null ? current : new RegexParser(limits.getMaxNFAStates()).parse(pattern, flags);
+        }
+        
+        public DFA getDFA() {
+            return dfa;
+        }
+        
+        /**
+         * Returns the DFA find() runs on, built on first use
+         */
+        public DFA getSearchDFA() {
+            DFA result = searchDfa;
+            if (result == null) {
+                if (nfa == null && !rebuildable) {
+                    throw new IllegalStateException("Loaded patterns only support full matches");
+                }
+                synchronized (this) {
+                    result = searchDfa;
+                    if (result == null) {
+                        result = new DFA(getNFA(), limits, true, interner);
+                        searchDfa = result;
+                    }
+                }
+            }
+            return result;
+        }
+        
+        public ResourceLimits getLimits() {
+            return limits;
         }
     }
 }
@@ -1,6 +1,8 @@
 package test;
 
 import regex.*;
+import java.nio.file.*;
+import java.util.*;
 
 /**
  * Comprehensive test suite for the regex engine (Pure Java - no JUnit)
@@ -17,6 +19,11 @@ public class RegexEngineTest {
     public static void main(String[] args) {
         RegexEngineTest tester = new RegexEngineTest();
         tester.runAllTests();
+        
+        // A non-zero status fails the Maven build
+        if (tester.passedTests != tester.totalTests) {
+            System.exit(1);
+        }
     }
     
     public void runAllTests() {
@@ -36,6 +43,14 @@ public class RegexEngineTest {
         testCompiledPattern();
         testInvalidPatterns();
         testEdgeCases();
+        testSerialization();
+        testOffHeap();
+        testMetrics();
+        testResourceLimits();
+        testLexer();
+        testFlagsAndAnchors();
+        testSharing();
+        testPatternAlgebra();
         
         System.out.println("\n=== Test Results ===");
         System.out.printf("Total: %d, Passed: %d, Failed: %d\n", 
@@ -236,5 +251,392 @@ public class RegexEngineTest {
         assertFalse(engine.matches("a*b+c?", "aaa"), "Multiple operators: aaa (no b)");
         System.out.println();
     }
+    
+    private void testSerialization() {
+        System.out.println("Testing Serialization:");
+        try {
+            RegexEngine.CompiledPattern original = engine.compilePattern("(a|b)*c.d");
+            RegexEngine.CompiledPattern loaded =
+                PatternSerializer.fromBytes(PatternSerializer.toBytes(original));
+            
+            assertTrue(loaded.matches("abcxd"), "Loaded pattern: abcxd");
+            assertTrue(loaded.matches("c1d"), "Loaded pattern: c1d");
+            assertFalse(loaded.matches("abcd"), "Loaded pattern: abcd (should fail)");
+            assertTrue("(a|b)*c.d".equals(loaded.getPattern()), "Loaded pattern keeps source");
+            
+            boolean exceptionThrown = false;
+            try {
+                PatternSerializer.fromBytes(new byte[] {1, 2, 3, 4});
+            } catch (java.io.IOException e) {
+                exceptionThrown = true;
+            }
+            assertTrue(exceptionThrown, "Bad image throws exception");
+            
+            // A header claiming a huge table, with nothing after it
+            java.io.ByteArrayOutputStream hostile = new java.io.ByteArrayOutputStream();
+            java.io.DataOutputStream header = new java.io.DataOutputStream(hostile);
+            header.writeInt(PatternSerializer.MAGIC);
+            header.writeShort(PatternSerializer.VERSION);
+            header.writeShort(0);
+            header.writeInt(0);
+            header.writeInt(Character.MAX_VALUE + 1);
+            header.writeInt(Integer.MAX_VALUE);
+            header.writeInt(0);
+            exceptionThrown = false;
+            try {
+                PatternSerializer.fromBytes(hostile.toByteArray());
+            } catch (java.io.EOFException e) {
+                exceptionThrown = true;
+            }
+            assertTrue(exceptionThrown, "Truncated image fails before allocating its table");
+            
+            // Longer than writeUTF() allows, in UTF-8 bytes
+            String longSource = "é".repeat(40_000);
+            RegexEngine.CompiledPattern longPattern = engine.compilePattern(longSource);
+            assertTrue(longSource.equals(PatternSerializer.fromBytes(PatternSerializer.toBytes(longPattern))
+                .getPattern()), "Source over 64 KB round trips");
+            PatternBundle longBundle = PatternBundle.offHeap(Map.of(longSource, longPattern));
+            assertTrue(longBundle.get(longSource).matches(longSource), "Bundle name over 64 KB");
+            
+            Map<String, RegexEngine.CompiledPattern> patterns = new LinkedHashMap<>();
+            patterns.put("email", engine.compilePattern("a+@b+\\.c+"));
+            patterns.put("nested", engine.compilePattern("((a|b)*c)+"));
+            Path file = Files.createTempFile("patterns", ".bundle");
+            try {
+                PatternBundle.write(patterns, file);
+                PatternBundle bundle = PatternBundle.open(file);
+                
+                assertTrue(bundle.size() == 2, "Bundle holds both patterns");
+                assertTrue(bundle.get("email").matches("aa@bb.cc"), "Mapped pattern: aa@bb.cc");
+                assertFalse(bundle.get("email").matches("aa@bb"), "Mapped pattern: aa@bb (should fail)");
+                assertTrue(bundle.get("nested").matches("abcaac"), "Mapped pattern: abcaac");
+                assertFalse(bundle.get("nested").matches("ab"), "Mapped pattern: ab (should fail)");
+                assertTrue(bundle.get("nested").load().matches("c"), "Loaded from bundle: c");
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (java.io.IOException e) {
+            assertTrue(false, "Serialization threw " + e);
+        }
+        System.out.println();
+    }
+    
+    private void testOffHeap() {
+        System.out.println("Testing Off-Heap Patterns:");
+        Map<String, RegexEngine.CompiledPattern> patterns = new LinkedHashMap<>();
+        patterns.put("star", engine.compilePattern("ab*"));
+        patterns.put("alternation", engine.compilePattern("cat|dog"));
+        
+        PatternBundle bundle = PatternBundle.offHeap(patterns);
+        assertTrue(bundle.get("star").matches("abbb"), "Off-heap pattern: abbb");
+        assertFalse(bundle.get("star").matches("ba"), "Off-heap pattern: ba (should fail)");
+        assertTrue(bundle.get("alternation").matches("dog"), "Off-heap pattern: dog");
+        assertFalse(bundle.get("alternation").matches("bird"), "Off-heap pattern: bird (should fail)");
+        
+        bundle.close();
+        boolean exceptionThrown = false;
+        try {
+            bundle.get("star").matches("ab");
+        } catch (IllegalStateException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown, "Closed bundle throws exception");
+        assertTrue(bundle.names().isEmpty(), "Closed bundle drops its patterns");
+        System.out.println();
+    }
+    
+    private void testMetrics() {
+        System.out.println("Testing Metrics:");
+        MetricsCollector collector = new MetricsCollector();
+        collector.patternCompiled("a+b", 1000, 6, 2, 4);
+        collector.patternMatched("a+b", 100, 3, 2, 2, 1, true);
+        collector.patternMatched("a+b", 300, 5, 3, 5, 0, false);
+        collector.patternMatched("c*", 5000, 40, 1, 40, 0, true);
+        
+        MetricsCollector.PatternStats stats = collector.get("a+b");
+        assertTrue(stats.getMatchCount() == 2, "Match count recorded");
+        assertTrue(stats.getCharCount() == 8, "Characters recorded");
+        assertTrue(stats.getMaxActiveStates() == 3, "Max active states recorded");
+        assertTrue(stats.getCacheHits() == 7 && stats.getCacheMisses() == 1, "Cache hits and misses recorded");
+        assertTrue(stats.getStates() == 6 && stats.getEpsilonTransitions() == 4, "Automaton size recorded");
+        assertTrue(stats.getLatencyPercentile(50) == 127, "Median latency bucket");
+        assertTrue(stats.getLatencyPercentile(100) == 511, "Max latency bucket");
+        assertTrue(collector.hottest(1).equals(List.of("c*")), "Hottest pattern first");
+        
+        if (Instrumentation.ENABLED) {
+            MetricsCollector live = new MetricsCollector();
+            Instrumentation.addListener(live);
+            try {
+                RegexEngine.CompiledPattern pattern = engine.compilePattern("(a|b)*c");
+                assertTrue(pattern.matches("abac"), "Instrumented match: abac");
+                assertFalse(pattern.matches("abd"), "Instrumented match: abd (should fail)");
+                assertTrue(live.get("(a|b)*c").getMatchCount() == 2, "Instrumented matches recorded");
+                assertTrue(live.get("(a|b)*c").getCompileCount() == 1, "Instrumented compile recorded");
+            } finally {
+                Instrumentation.removeListener(live);
+            }
+        }
+        System.out.println();
+    }
+    
+    private void testResourceLimits() {
+        System.out.println("Testing Resource Limits:");
+        ResourceLimits compileLimits = new ResourceLimits().setMaxNFAStates(10);
+        RegexEngine limited = new RegexEngine(compileLimits);
+        assertTrue(limited.matches("abcd", "abcd"), "Pattern within NFA state limit");
+        
+        boolean exceptionThrown = false;
+        try {
+            limited.compile("abcdefghij");
+        } catch (ResourceLimitException e) {
+            exceptionThrown = e.getLimit() == ResourceLimits.Limit.NFA_STATES;
+        }
+        assertTrue(exceptionThrown, "NFA state limit throws exception");
+        assertTrue(compileLimits.getHits(ResourceLimits.Limit.NFA_STATES) == 1, "NFA state limit hit counted");
+        
+        // Needs 2^4 DFA states, far more than the budget allows
+        String explosive = "(a|b)*a(a|b)(a|b)(a|b)";
+        ResourceLimits fallback = new ResourceLimits().setMaxDFACacheBytes(1);
+        RegexEngine.CompiledPattern pattern = engine.compilePattern(explosive, fallback);
+        assertTrue(pattern.matches("bbabab"), "Cache limit falls back: bbabab");
+        assertFalse(pattern.matches("bbbbab"), "Cache limit falls back: bbbbab (should fail)");
+        assertTrue(fallback.getHits(ResourceLimits.Limit.DFA_CACHE_BYTES) == 2, "Cache limit hits counted");
+        
+        ResourceLimits unknown = new ResourceLimits().setMaxDFACacheBytes(1)
+            .setCacheLimitAction(ResourceLimits.Action.UNKNOWN);
+        pattern = engine.compilePattern(explosive, unknown);
+        assertTrue(pattern.match("bbabab") == MatchResult.UNKNOWN, "Cache limit gives unknown result");
+        
+        exceptionThrown = false;
+        try {
+            pattern.getDFA().determinize();
+        } catch (ResourceLimitException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown, "Determinizing over the cache limit throws exception");
+        assertTrue(unknown.getHits(ResourceLimits.Limit.DFA_CACHE_BYTES) == 2, "Determinize hit counted");
+        
+        exceptionThrown = false;
+        try {
+            new RegexEngine(new ResourceLimits().setMaxSteps(3)).matches("a*", "aaaaa");
+        } catch (ResourceLimitException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown, "Engine matches() applies match limits");
+        
+        ResourceLimits steps = new ResourceLimits().setMaxSteps(5);
+        pattern = engine.compilePattern("a*", steps);
+        assertTrue(pattern.matches("aaaaa"), "Match within step limit");
+        exceptionThrown = false;
+        try {
+            pattern.matches("aaaaaa");
+        } catch (ResourceLimitException e) {
+            exceptionThrown = e.getLimit() == ResourceLimits.Limit.STEPS;
+        }
+        assertTrue(exceptionThrown, "Step limit throws exception");
+        
+        steps.setMatchLimitAction(ResourceLimits.Action.UNKNOWN);
+        assertTrue(pattern.match("aaaaaa") == MatchResult.UNKNOWN, "Step limit gives unknown result");
+        assertTrue(steps.getHits(ResourceLimits.Limit.STEPS) == 2, "Step limit hits counted");
+        
+        ResourceLimits deadline = new ResourceLimits().setMaxMatchNanos(0)
+            .setMatchLimitAction(ResourceLimits.Action.UNKNOWN);
+        pattern = engine.compilePattern("a*", deadline);
+        assertTrue(pattern.match("aaa") == MatchResult.UNKNOWN, "Deadline gives unknown result");
+        assertTrue(deadline.getHits(ResourceLimits.Limit.DEADLINE) == 1, "Deadline hit counted");
+        System.out.println();
+    }
+    
+    private void testLexer() {
+        System.out.println("Testing Lexer:");
+        Lexer lexer = new Lexer(List.of(
+            new Lexer.Rule("IF", "if"),
+            new Lexer.Rule("ID", "(a|b|c|d|e|f|g|h|i|x|y|z)+"),
+            new Lexer.Rule("NUM", "(0|1|2|3|4|5|6|7|8|9)+"),
+            new Lexer.Rule("OP", "=|=="),
+            new Lexer.Rule("WS", " +")));
+        Lexer.Tokens tokens = new Lexer.Tokens(2);
+        
+        String input = "if iff == 42 x=y";
+        int count = lexer.tokenize(input, tokens);
+        StringBuilder kinds = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (tokens.kind(i) != 4) {
+                kinds.append(lexer.getName(tokens.kind(i))).append(' ');
+            }
+        }
+        assertTrue(kinds.toString().equals("IF ID OP NUM ID OP ID "), "Token kinds by priority and longest match");
+        assertTrue(tokens.start(2) == 3 && tokens.end(2) == 6, "Token offsets: iff");
+        assertTrue(input.substring(tokens.start(4), tokens.end(4)).equals("=="), "Longest operator match");
+        
+        count = lexer.tokenize("x#1", tokens);
+        assertTrue(count == 3 && tokens.kind(1) == Lexer.ERROR, "Unmatched character is an error token");
+        
+        try {
+            count = lexer.tokenize(new java.io.StringReader("42 if"), tokens);
+            assertTrue(count == 3 && tokens.kind(2) == 0, "Tokenize from reader");
+        } catch (java.io.IOException e) {
+            assertTrue(false, "Tokenize from reader threw " + e);
+        }
+        
+        boolean exceptionThrown = false;
+        try {
+            new Lexer(List.of(new Lexer.Rule("EMPTY", "a*")));
+        } catch (IllegalArgumentException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown, "Rule matching empty string throws exception");
+        
+        // Plain maximal munch rescans the whole run for every token here
+        Lexer backtracking = new Lexer(List.of(new Lexer.Rule("A", "a"), new Lexer.Rule("AB", "a*b")));
+        assertTrue(backtracking.tokenize("aaab" + "a".repeat(3), tokens) == 4 && tokens.kind(0) == 1
+            && tokens.end(0) == 4, "Memoized scan keeps longest match");
+        fastestTokenize(backtracking, "a".repeat(160_000), tokens);
+        long small = fastestTokenize(backtracking, "a".repeat(20_000), tokens);
+        long large = fastestTokenize(backtracking, "a".repeat(160_000), tokens);
+        assertTrue(tokens.count() == 160_000 && large < small * 24, "Tokenizing scales linearly");
+        assertTrue(backtracking.tokenize("aaab", tokens) == 1 && tokens.kind(0) == 1,
+            "Reused memo starts empty");
+        System.out.println();
+    }
+    
+    private long fastestTokenize(Lexer lexer, String input, Lexer.Tokens tokens) {
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            lexer.tokenize(input, tokens);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+    
+    private void testFlagsAndAnchors() {
+        System.out.println("Testing Flags and Anchors:");
+        
+        RegexEngine.CompiledPattern sensitive = engine.compilePattern("(ab|cd)*e");
+        RegexEngine.CompiledPattern insensitive = engine.compilePattern("(ab|cd)*e",
+            RegexEngine.CASE_INSENSITIVE);
+        assertTrue(insensitive.matches("AbcDE"), "Case-insensitive match");
+        assertFalse(sensitive.matches("AbcDE"), "Case-sensitive by default");
+        assertTrue(insensitive.getDFA().determinize().getStateCount()
+            == sensitive.getDFA().determinize().getStateCount(), "Case folding adds no DFA states");
+        assertTrue(engine.compilePattern("A.c", RegexEngine.CASE_INSENSITIVE).matches("aBC"),
+            "Case-insensitive any character");
+        
+        RegexEngine.CompiledPattern contains = engine.compilePattern("ab+c");
+        assertTrue(contains.find("xxabbcxx"), "Find match inside input");
+        assertFalse(contains.find("xxabxbc"), "Find no match inside input");
+        assertTrue(engine.compilePattern("^ab").find("abxx"), "^ anchors find at start");
+        assertFalse(engine.compilePattern("^ab").find("xabx"), "^ fails away from start");
+        assertTrue(engine.compilePattern("ab$").find("xxab"), "$ anchors find at end");
+        assertFalse(engine.compilePattern("ab$").find("xabx"), "$ fails away from end");
+        assertTrue(engine.compilePattern("^a*$").matches(""), "Anchors match empty input");
+        assertTrue(engine.compilePattern("a^b").getNFA().hasAnchors()
+            && !engine.compilePattern("a^b").matches("ab"), "^ in the middle never matches");
+        assertTrue(engine.compilePattern("\\^a\\$").matches("^a$"), "Escaped anchors are literals");
+        
+        RegexEngine.CompiledPattern line = engine.compilePattern("^b+$", RegexEngine.MULTILINE);
+        assertTrue(line.find("a\nbb\nc"), "MULTILINE anchors match at line breaks");
+        assertFalse(engine.compilePattern("^b+$").find("a\nbb\nc"), "Anchors match input edges only by default");
+        assertFalse(line.find("a\nbbc"), "MULTILINE $ needs a line end");
+        assertTrue(engine.compilePattern("^$", RegexEngine.MULTILINE).find("a\n\nb"), "MULTILINE empty line");
+        assertTrue(engine.compilePattern("a$\n^b", RegexEngine.MULTILINE).matches("a\nb"),
+            "Anchors around a line break");
+        assertTrue(engine.compilePattern("^B", RegexEngine.CASE_INSENSITIVE | RegexEngine.MULTILINE)
+            .find("a\nbc"), "Combined flags");
+        
+        ResourceLimits tight = new ResourceLimits().setMaxDFACacheBytes(1);
+        assertTrue(engine.compilePattern("^b+$", RegexEngine.MULTILINE, tight).find("a\nbb\nc"),
+            "Find falls back to NFA simulation");
+        
+        boolean exceptionThrown = false;
+        try {
+            new Lexer(List.of(new Lexer.Rule("START", "^a")));
+        } catch (IllegalArgumentException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown, "Lexer rule with anchor throws exception");
+        System.out.println();
+    }
+    
+    private void testSharing() {
+        System.out.println("Testing Structural Sharing:");
+        RegexEngine sharing = new RegexEngine();
+        RegexEngine.CompiledPattern first = sharing.compilePattern("(a|b)*abb");
+        assertTrue(sharing.compilePattern("(a|b)*abb") == first, "Same pattern compiled once");
+        assertTrue(sharing.compilePattern("(a|b)*abb", RegexEngine.CASE_INSENSITIVE) != first,
+            "Flags are part of the pattern identity");
+        assertTrue(sharing.compilePattern("(a|b)*abb", new ResourceLimits()) != first,
+            "Limits are part of the pattern identity");
+        assertTrue(sharing.getCachedPatternCount() >= 1, "Compiled patterns cached");
+        
+        DFA left = sharing.compilePattern("x(a|b)*").getDFA().determinize();
+        DFA right = sharing.compilePattern("y(a|b)*").getDFA().determinize();
+        int rows = left.getStateCount() + right.getStateCount();
+        assertTrue(sharing.getInterner().size() < rows, "Fewer distinct rows than DFA states");
+        assertTrue(sharing.getInterner().getHits() > 0, "Equal DFA tables shared across patterns");
+        assertTrue(sharing.compilePattern("x(a|b)*").matches("xabba"), "Shared tables still match");
+        assertFalse(sharing.compilePattern("y(a|b)*").matches("xabba"), "Shared tables keep patterns apart");
+        assertTrue(sharing.compilePattern("y(a|b)*").find("zzyab"), "Shared tables in search DFA");
+        assertTrue(left.isComplete(), "Fully determinized DFA is complete");
+        assertTrue(sharing.compilePattern("x(a|b)*").getNFA().getStates().size() > 0,
+            "ε-NFA rebuilt from the source once the DFA is complete");
+        System.out.println();
+    }
+    
+    private void testPatternAlgebra() {
+        System.out.println("Testing Pattern Algebra:");
+        RegexEngine.CompiledPattern abPlus = engine.compilePattern("ab+");
+        RegexEngine.CompiledPattern aAny = engine.compilePattern("a.*");
+        RegexEngine.CompiledPattern bA = engine.compilePattern("(a|b)*b");
+        
+        assertTrue(PatternAlgebra.isSubsetOf(abPlus, aAny), "ab+ is contained in a.*");
+        assertFalse(PatternAlgebra.isSubsetOf(aAny, abPlus), "a.* is not contained in ab+");
+        assertTrue(PatternAlgebra.isEquivalent(engine.compilePattern("(a|b)*"),
+            engine.compilePattern("(a*b*)*")), "(a|b)* equals (a*b*)*");
+        assertFalse(PatternAlgebra.isEquivalent(abPlus, aAny), "ab+ differs from a.*");
+        
+        RegexEngine.CompiledPattern both = PatternAlgebra.intersection(aAny, bA);
+        assertTrue(both.matches("aab") && !both.matches("aa") && !both.matches("bab"), "Intersection");
+        RegexEngine.CompiledPattern either = PatternAlgebra.union(abPlus, engine.compilePattern("c"));
+        assertTrue(either.matches("abb") && either.matches("c") && !either.matches("a"), "Union");
+        RegexEngine.CompiledPattern rest = PatternAlgebra.difference(aAny, abPlus);
+        assertTrue(rest.matches("a") && rest.matches("aba") && !rest.matches("abb"), "Difference");
+        RegexEngine.CompiledPattern not = PatternAlgebra.complement(abPlus);
+        assertTrue(not.matches("") && not.matches("z\u00e9") && !not.matches("ab"), "Complement");
+        assertTrue(PatternAlgebra.isEquivalent(PatternAlgebra.complement(not), abPlus), "Double complement");
+        
+        assertTrue(PatternAlgebra.isEmpty(engine.compilePattern("a^b")), "Anchor in the middle is empty");
+        assertTrue(PatternAlgebra.isEmpty(PatternAlgebra.intersection(abPlus, engine.compilePattern("b.*"))),
+            "Disjoint patterns have empty intersection");
+        assertFalse(PatternAlgebra.isEmpty(abPlus), "ab+ is not empty");
+        assertTrue("ab".equals(PatternAlgebra.example(abPlus)), "Shortest example of ab+");
+        assertTrue(PatternAlgebra.example(PatternAlgebra.intersection(abPlus, engine.compilePattern("a"))) == null,
+            "No example of an empty pattern");
+        assertTrue(PatternAlgebra.isSubsetOf(engine.compilePattern("AB", RegexEngine.CASE_INSENSITIVE),
+            engine.compilePattern("(a|A)(b|B)")), "Flags are part of the language");
+        
+        Map<String, RegexEngine.CompiledPattern> filters = new LinkedHashMap<>();
+        filters.put("prefix", aAny);
+        filters.put("narrow", abPlus);
+        filters.put("same", engine.compilePattern("ab*b"));
+        filters.put("dead", engine.compilePattern("a$b"));
+        filters.put("other", engine.compilePattern("c+"));
+        PatternSetOptimizer.Analysis analysis = PatternSetOptimizer.analyze(filters);
+        assertTrue(analysis.getNeverMatching().equals(Set.of("dead")), "Never-matching filter found");
+        assertTrue(analysis.getEquivalents().equals(Map.of("same", "narrow")), "Equivalent filter found");
+        assertTrue(analysis.getContainers().equals(Map.of("narrow", Set.of("prefix"))), "Subsumed filter found");
+        assertTrue(analysis.getRequired().equals(new LinkedHashSet<>(List.of("prefix", "narrow", "other"))),
+            "Required filters");
+        assertTrue(analysis.isRedundant("same") && !analysis.isRedundant("other"), "Redundant filters");
+        
+        boolean exceptionThrown = false;
+        try {
+            PatternSetOptimizer.requireSatisfiable(engine.compilePattern("a^b"));
+        } catch (IllegalArgumentException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown, "Dead filter rejected");
+        System.out.println();
+    }
 }
-
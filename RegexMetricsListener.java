@@ -0,0 +1,33 @@
+package regex;
+
+/**
+ * Receives compile and match measurements from the instrumentation layer.
+ * Listeners are only called when instrumentation is enabled (see
+ * Instrumentation) and may be called from many threads at once.
+ */
+public interface RegexMetricsListener {
+    
+    /**
+     * Called after a pattern has been parsed into an ε-NFA
+     */
+    default void patternCompiled(String pattern, long nanos,
+                                 int states, int transitions, int epsilonTransitions) {
+    }
+    
+    /**
+     * Called after a compiled pattern has been matched against an input.
+     * chars is the number of characters consumed before the match was
+     * decided; maxActiveStates is the largest ε-NFA state set the DFA
+     * passed through; cache hits and misses count DFA transitions that were
+     * already computed or had to be built by subset construction.
+     */
+    default void patternMatched(String pattern, long nanos, int chars, int maxActiveStates,
+                                int cacheHits, int cacheMisses, boolean matched) {
+    }
+    
+    /**
+     * Called when compiling or matching a pattern hits a resource limit
+     */
+    default void limitExceeded(String pattern, ResourceLimits.Limit limit) {
+    }
+}
@@ -3,16 +3,49 @@ package regex;
 import java.util.*;
 
 /**
- * Parses regex patterns and constructs ε-NFAs using Thompson's construction
+ * Parses regex patterns and constructs ε-NFAs using Thompson's construction.
+ * A parser counts the states of the pattern it is parsing, so an instance
+ * must not be shared between threads.
  */
 public class RegexParser {
+    private final int maxStates;
+    private int stateCount;
+    private int flags;
+    
+    public RegexParser() {
+        this(Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Creates a parser that fails with a ResourceLimitException once a
+     * pattern needs more than maxStates ε-NFA states
+     */
+    public RegexParser(int maxStates) {
+        this.maxStates = maxStates;
+    }
     
     /**
      * Parses a regular expression and returns an ε-NFA
-     * Supports: literals, concatenation, alternation (|), Kleene star (*), plus (+), optional (?)
+     * Supports: literals, concatenation, alternation (|), Kleene star (*), plus (+), optional (?),
+     * anchors (^, $)
      */
     public EpsilonNFA parse(String regex) {
-        return parseExpression(new StringBuilder(regex));
+        return parse(regex, 0);
+    }
+    
+    /**
+     * Parses a regular expression with RegexEngine compile flags
+     */
+    public EpsilonNFA parse(String regex, int flags) {
+        stateCount = 0;
+        this.flags = flags;
+        StringBuilder input = new StringBuilder(regex);
+        EpsilonNFA nfa = parseExpression(input);
+        if (input.length() > 0) {
+            // parseExpression only stops early at a ')' nothing opened
+            throw new IllegalArgumentException("Unmatched closing parenthesis");
+        }
+        return new EpsilonNFA(nfa.getStartState(), nfa.getEndState(), flags);
     }
     
     private EpsilonNFA parseExpression(StringBuilder regex) {
@@ -87,31 +120,69 @@ public class RegexParser {
             return createLiteral(escaped);
         } else if (c == '.') {
             return createAnyChar();
+        } else if (c == '^') {
+            return createAnchor(EpsilonNFA.LINE_START);
+        } else if (c == '$') {
+            return createAnchor(EpsilonNFA.LINE_END);
         } else {
             return createLiteral(c);
         }
     }
     
+    /**
+     * Creates a state, enforcing the state limit
+     */
+    private State newState(boolean accepting) {
+        if (++stateCount > maxStates) {
+            throw new ResourceLimitException(ResourceLimits.Limit.NFA_STATES,
+                "Pattern needs more than " + maxStates + " NFA states");
+        }
+        return new State(accepting);
+    }
+    
     /**
      * Creates ε-NFA for a single character
      */
     private EpsilonNFA createLiteral(char c) {
-        State start = new State();
-        State end = new State(true);
-        start.addTransition(c, end);
+        if (c == EpsilonNFA.LINE_START || c == EpsilonNFA.LINE_END) {
+            throw new IllegalArgumentException("Reserved character U+" + Integer.toHexString(c).toUpperCase());
+        }
+        State start = newState(false);
+        State end = newState(true);
+        start.addTransition(fold(c), end);
         return new EpsilonNFA(start, end);
     }
     
+    /**
+     * Creates ε-NFA for ^ or $, a transition on the anchor's reserved symbol
+     */
+    private EpsilonNFA createAnchor(char anchor) {
+        State start = newState(false);
+        State end = newState(true);
+        start.addTransition(anchor, end);
+        return new EpsilonNFA(start, end);
+    }
+    
+    /**
+     * Case-insensitive patterns only have transitions on lower-case letters
+     */
+    private char fold(char c) {
+        if ((flags & RegexEngine.CASE_INSENSITIVE) != 0 && c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        }
+        return c;
+    }
+    
     /**
      * Creates ε-NFA for any character (.)
      */
     private EpsilonNFA createAnyChar() {
-        State start = new State();
-        State end = new State(true);
+        State start = newState(false);
+        State end = newState(true);
         
         // Add transitions for printable ASCII characters
         for (char c = 32; c <= 126; c++) {
-            start.addTransition(c, end);
+            start.addTransition(fold(c), end);
         }
         
         return new EpsilonNFA(start, end);
@@ -121,8 +192,8 @@ public class RegexParser {
      * Creates ε-NFA for epsilon (empty string)
      */
     private EpsilonNFA createEpsilon() {
-        State start = new State();
-        State end = new State(true);
+        State start = newState(false);
+        State end = newState(true);
         start.addEpsilonTransition(end);
         return new EpsilonNFA(start, end);
     }
@@ -140,8 +211,8 @@ public class RegexParser {
      * Creates alternation (union) of two ε-NFAs
      */
     private EpsilonNFA createAlternation(EpsilonNFA first, EpsilonNFA second) {
-        State start = new State();
-        State end = new State(true);
+        State start = newState(false);
+        State end = newState(true);
         
         start.addEpsilonTransition(first.getStartState());
         start.addEpsilonTransition(second.getStartState());
@@ -159,8 +230,8 @@ public class RegexParser {
      * Creates Kleene star (zero or more repetitions)
      */
     private EpsilonNFA createKleeneStar(EpsilonNFA nfa) {
-        State start = new State();
-        State end = new State(true);
+        State start = newState(false);
+        State end = newState(true);
         
         start.addEpsilonTransition(nfa.getStartState());
         start.addEpsilonTransition(end);
@@ -176,7 +247,7 @@ public class RegexParser {
      * Creates plus operator (one or more repetitions)
      */
     private EpsilonNFA createPlus(EpsilonNFA nfa) {
-        State end = new State(true);
+        State end = newState(true);
         
         nfa.getEndState().setAccepting(false);
         nfa.getEndState().addEpsilonTransition(nfa.getStartState());
@@ -189,8 +260,8 @@ public class RegexParser {
      * Creates optional operator (zero or one occurrence)
      */
     private EpsilonNFA createOptional(EpsilonNFA nfa) {
-        State start = new State();
-        State end = new State(true);
+        State start = newState(false);
+        State end = newState(true);
         
         start.addEpsilonTransition(nfa.getStartState());
         start.addEpsilonTransition(end);
@@ -0,0 +1,19 @@
+package regex;
+
+/**
+ * Thrown when compiling or matching a pattern exceeds a ResourceLimits budget
+ */
+public class ResourceLimitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    
+    private final ResourceLimits.Limit limit;
+    
+    public ResourceLimitException(ResourceLimits.Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+    
+    public ResourceLimits.Limit getLimit() {
+        return limit;
+    }
+}
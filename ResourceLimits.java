@@ -0,0 +1,152 @@
+package regex;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resource budgets for compiling and matching untrusted patterns.
+ *
+ * The ε-NFA state limit is checked while parsing and always fails the
+ * compile with a ResourceLimitException. When the lazily built DFA would
+ * outgrow its cache budget, or a match runs out of steps or time, the
+ * configured Action decides the outcome. Every limit hit is counted.
+ *
+ * Limits are read when patterns are compiled and matched, so configure them
+ * before handing them to a RegexEngine.
+ */
+public class ResourceLimits {
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    
+    /**
+     * The budgets that can be exceeded
+     */
+    public enum Limit {
+        /** ε-NFA states created while parsing a pattern */
+        NFA_STATES,
+        /** Estimated memory held by a pattern's lazily built DFA */
+        DFA_CACHE_BYTES,
+        /** Characters consumed by one match */
+        STEPS,
+        /** Wall-clock time of one match */
+        DEADLINE
+    }
+    
+    /**
+     * What a match does when it exceeds a budget
+     */
+    public enum Action {
+        /** Throw a ResourceLimitException */
+        THROW,
+        /** Finish the match by ε-NFA simulation (DFA cache budget only) */
+        FALLBACK,
+        /** Give up and report MatchResult.UNKNOWN */
+        UNKNOWN
+    }
+    
+    private int maxNFAStates = Integer.MAX_VALUE;
+    private long maxDFACacheBytes = UNLIMITED;
+    private long maxSteps = UNLIMITED;
+    private long maxMatchNanos = UNLIMITED;
+    private Action cacheLimitAction = Action.FALLBACK;
+    private Action matchLimitAction = Action.THROW;
+    private final LongAdder[] hits = new LongAdder[Limit.values().length];
+    
+    public ResourceLimits() {
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new LongAdder();
+        }
+    }
+    
+    public ResourceLimits setMaxNFAStates(int maxNFAStates) {
+        if (maxNFAStates < 1) {
+            throw new IllegalArgumentException("Max NFA states must be positive");
+        }
+        this.maxNFAStates = maxNFAStates;
+        return this;
+    }
+    
+    public ResourceLimits setMaxDFACacheBytes(long maxDFACacheBytes) {
+        if (maxDFACacheBytes < 0) {
+            throw new IllegalArgumentException("Max DFA cache bytes cannot be negative");
+        }
+        this.maxDFACacheBytes = maxDFACacheBytes;
+        return this;
+    }
+    
+    public ResourceLimits setMaxSteps(long maxSteps) {
+        if (maxSteps < 0) {
+            throw new IllegalArgumentException("Max steps cannot be negative");
+        }
+        this.maxSteps = maxSteps;
+        return this;
+    }
+    
+    public ResourceLimits setMaxMatchNanos(long maxMatchNanos) {
+        if (maxMatchNanos < 0) {
+            throw new IllegalArgumentException("Max match time cannot be negative");
+        }
+        this.maxMatchNanos = maxMatchNanos;
+        return this;
+    }
+    
+    /**
+     * Sets the outcome of exceeding the DFA cache budget (default FALLBACK)
+     */
+    public ResourceLimits setCacheLimitAction(Action action) {
+        this.cacheLimitAction = action;
+        return this;
+    }
+    
+    /**
+     * Sets the outcome of exceeding the step or time budget (default THROW).
+     * FALLBACK is not allowed: the ε-NFA would be no cheaper.
+     */
+    public ResourceLimits setMatchLimitAction(Action action) {
+        if (action == Action.FALLBACK) {
+            throw new IllegalArgumentException("Step and time limits cannot fall back");
+        }
+        this.matchLimitAction = action;
+        return this;
+    }
+    
+    public int getMaxNFAStates() {
+        return maxNFAStates;
+    }
+    
+    public long getMaxDFACacheBytes() {
+        return maxDFACacheBytes;
+    }
+    
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+    
+    public long getMaxMatchNanos() {
+        return maxMatchNanos;
+    }
+    
+    public Action getCacheLimitAction() {
+        return cacheLimitAction;
+    }
+    
+    public Action getMatchLimitAction() {
+        return matchLimitAction;
+    }
+    
+    /**
+     * Returns true if matching needs no budget checks
+     */
+    public boolean isMatchUnlimited() {
+        return maxDFACacheBytes == UNLIMITED && maxSteps == UNLIMITED && maxMatchNanos == UNLIMITED;
+    }
+    
+    /**
+     * Returns how many times the given limit has been hit
+     */
+    public long getHits(Limit limit) {
+        return hits[limit.ordinal()].sum();
+    }
+    
+    void recordHit(Limit limit) {
+        hits[limit.ordinal()].increment();
+    }
+}
@@ -36,6 +36,13 @@ public class State {
         return transitions.getOrDefault(symbol, new HashSet<>());
     }
     
+    /**
+     * Returns the symbols this state has character transitions on
+     */
+    public Set<Character> getTransitionSymbols() {
+        return transitions.keySet();
+    }
+    
     public Set<State> getEpsilonTransitions() {
         return epsilonTransitions;
     }
@@ -0,0 +1,62 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import regex.RegexEngine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Pattern compilation cost as the pattern grows, against java.util.regex.
+ * An engine returns its cached instance for a pattern it already compiled,
+ * so the compile benchmarks use a fresh engine per invocation; compileCached
+ * measures that cache hit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+    /** Number of alternatives in the pattern */
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private RegexEngine engine;
+    private String pattern;
+
+    @Setup
+    public void setup() {
+        engine = new RegexEngine();
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append('|');
+            builder.append("id").append(i).append("(x|y)*z");
+        }
+        pattern = builder.toString();
+    }
+
+    @Benchmark
+    public RegexEngine.CompiledPattern compile() {
+        return new RegexEngine().compilePattern(pattern);
+    }
+
+    @Benchmark
+    public RegexEngine.CompiledPattern compileAndDeterminize() {
+        RegexEngine.CompiledPattern compiled = new RegexEngine().compilePattern(pattern);
+        compiled.getDFA().determinize();
+        return compiled;
+    }
+
+    @Benchmark
+    public RegexEngine.CompiledPattern compileCached() {
+        return engine.compilePattern(pattern);
+    }
+
+    @Benchmark
+    public Pattern javaRegexBaseline() {
+        return Pattern.compile(pattern);
+    }
+}
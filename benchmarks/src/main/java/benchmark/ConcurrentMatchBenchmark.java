@@ -0,0 +1,53 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import regex.RegexEngine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Throughput of one pattern shared by several matching threads,
+ * against java.util.regex
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentMatchBenchmark {
+    private static final String PATTERN = "(a|b)*c(d|e)+f?";
+
+    private RegexEngine.CompiledPattern compiled;
+    private Pattern javaPattern;
+
+    @State(Scope.Thread)
+    public static class Input {
+        private final String[] texts = {"abababcdddf", "cde", "ababab", "bbbbbbcedede"};
+        private int next;
+
+        String nextText() {
+            String text = texts[next];
+            next = (next + 1) % texts.length;
+            return text;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        compiled = new RegexEngine().compilePattern(PATTERN);
+        javaPattern = Pattern.compile(PATTERN);
+    }
+
+    @Benchmark
+    public boolean sharedPattern(Input input) {
+        return compiled.matches(input.nextText());
+    }
+
+    @Benchmark
+    public boolean sharedPatternJavaRegexBaseline(Input input) {
+        return javaPattern.matcher(input.nextText()).matches();
+    }
+}
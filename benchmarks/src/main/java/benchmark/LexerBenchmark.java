@@ -0,0 +1,75 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import regex.Lexer;
+import regex.RegexEngine;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lexer tokenizing against the old approach of trying every rule's
+ * CompiledPattern on growing prefixes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+    private static final List<Lexer.Rule> RULES = List.of(
+        new Lexer.Rule("KEYWORD", "if|then|else"),
+        new Lexer.Rule("ID", "(a|b|c|d|e|f|h|i|l|n|s|t)+"),
+        new Lexer.Rule("NUM", "(0|1|2|3|4|5|6|7|8|9)+"),
+        new Lexer.Rule("OP", "=|==|\\+|-"),
+        new Lexer.Rule("WS", " +"));
+
+    @Param({"16", "128"})
+    public int statements;
+
+    private Lexer lexer;
+    private Lexer.Tokens tokens;
+    private RegexEngine.CompiledPattern[] patterns;
+    private String text;
+
+    @Setup
+    public void setup() {
+        lexer = new Lexer(RULES);
+        tokens = new Lexer.Tokens();
+
+        RegexEngine engine = new RegexEngine();
+        patterns = new RegexEngine.CompiledPattern[RULES.size()];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = engine.compilePattern(RULES.get(i).getPattern());
+        }
+
+        text = "if abc == 42 then def = abc + 1 else fib = 0 ".repeat(statements);
+    }
+
+    @Benchmark
+    public int lexer() {
+        return lexer.tokenize(text, tokens);
+    }
+
+    @Benchmark
+    public int prefixMatchingBaseline() {
+        int count = 0;
+        int position = 0;
+        while (position < text.length()) {
+            int end = position + 1;
+            for (int i = position + 1; i <= text.length(); i++) {
+                String prefix = text.substring(position, i);
+                for (RegexEngine.CompiledPattern pattern : patterns) {
+                    if (pattern.matches(prefix)) {
+                        end = i;
+                        break;
+                    }
+                }
+            }
+            count++;
+            position = end;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,58 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import regex.RegexEngine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * CompiledPattern.matches over short, long and non-matching inputs,
+ * against java.util.regex
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchBenchmark {
+    private static final String PATTERN = "(https?://)?(a|b|c|d)+(\\.(a|b|c|d)+)*\\.(com|org)";
+
+    @Param({"short", "long", "nonMatching"})
+    public String input;
+
+    private RegexEngine.CompiledPattern compiled;
+    private Pattern javaPattern;
+    private String text;
+
+    @Setup
+    public void setup() {
+        compiled = new RegexEngine().compilePattern(PATTERN);
+        javaPattern = Pattern.compile(PATTERN);
+
+        switch (input) {
+            case "short":
+                text = "abc.com";
+                break;
+            case "long":
+                text = "https://" + "abcd".repeat(250) + "." + "dcba".repeat(250) + ".org";
+                break;
+            case "nonMatching":
+                text = "https://" + "abcd".repeat(500) + ".net";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown input: " + input);
+        }
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return compiled.matches(text);
+    }
+
+    @Benchmark
+    public boolean javaRegexBaseline() {
+        return javaPattern.matcher(text).matches();
+    }
+}
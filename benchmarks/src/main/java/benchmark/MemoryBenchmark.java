@@ -0,0 +1,64 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import regex.RegexEngine;
+import regex.ResourceLimits;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retained heap of many fully determinized patterns that differ only in a
+ * literal prefix. "engine" compiles them through one RegexEngine, which
+ * interns equal DFA tables and lets each pattern drop its ε-NFA once its DFA
+ * is complete; "standalone" builds each CompiledPattern directly, keeping
+ * its ε-NFA and private tables. The footprint is reported as the
+ * retainedBytesPerPattern counter; JMH sums such counters over iterations,
+ * so a single measurement iteration is run.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemoryBenchmark {
+    /** Number of patterns kept alive */
+    @Param({"3000"})
+    public int count;
+
+    @Param({"engine", "standalone"})
+    public String mode;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long retainedBytesPerPattern;
+    }
+
+    @Benchmark
+    public List<RegexEngine.CompiledPattern> retained(Footprint footprint) {
+        long before = usedHeap();
+        RegexEngine engine = new RegexEngine();
+        List<RegexEngine.CompiledPattern> patterns = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String pattern = "u" + i + "@(a|b|c|d|e)+\\.(com|org|net)/(x|y|z)*";
+            RegexEngine.CompiledPattern compiled = mode.equals("engine")
+                ? engine.compilePattern(pattern)
+                : new RegexEngine.CompiledPattern(pattern, engine.compile(pattern), new ResourceLimits());
+            compiled.getDFA().determinize();
+            patterns.add(compiled);
+        }
+        footprint.retainedBytesPerPattern = (usedHeap() - before) / count;
+        return patterns;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
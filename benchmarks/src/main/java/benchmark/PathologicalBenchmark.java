@@ -0,0 +1,61 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import regex.RegexEngine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Patterns that make backtracking matchers take exponential time:
+ * (a|a)*b and (a?){n}a{n} against a run of n a's. Repetition counts are
+ * expanded textually since the engine has no {n} syntax.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathologicalBenchmark {
+    @Param({"10", "20"})
+    public int n;
+
+    private RegexEngine.CompiledPattern alternationStar;
+    private RegexEngine.CompiledPattern optionalRun;
+    private Pattern javaAlternationStar;
+    private Pattern javaOptionalRun;
+    private String text;
+
+    @Setup
+    public void setup() {
+        RegexEngine engine = new RegexEngine();
+        String optionalPattern = "a?".repeat(n) + "a".repeat(n);
+
+        alternationStar = engine.compilePattern("(a|a)*b");
+        optionalRun = engine.compilePattern(optionalPattern);
+        javaAlternationStar = Pattern.compile("(a|a)*b");
+        javaOptionalRun = Pattern.compile(optionalPattern);
+        text = "a".repeat(n);
+    }
+
+    @Benchmark
+    public boolean alternationStar() {
+        return alternationStar.matches(text);
+    }
+
+    @Benchmark
+    public boolean alternationStarJavaRegexBaseline() {
+        return javaAlternationStar.matcher(text).matches();
+    }
+
+    @Benchmark
+    public boolean optionalRun() {
+        return optionalRun.matches(text);
+    }
+
+    @Benchmark
+    public boolean optionalRunJavaRegexBaseline() {
+        return javaOptionalRun.matcher(text).matches();
+    }
+}